@@ -3,84 +3,90 @@ import java.nio.file.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Blob {
-    public static boolean COMPRESSION_ENABLED = true;
+    // Number of threads createRootTree uses to build subtrees, 1 keeps the snapshot on the calling thread
+    public static int SNAPSHOT_PARALLELISM = 1;
+    // Files at least this large are stored as content-defined chunks plus a manifest, 0 never chunks
+    public static long CHUNKING_THRESHOLD = 0;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Most files stageAll reads at once, and the size of the platform pool it falls back to
+    private static final int IO_PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
     static class IndexEntry {
         String type;  // either a "blob" or "tree"
-        String hash;
+        ObjectId id;
         String path;
         boolean deleted;
+        FileStat stat;  // stat data recorded when a blob was staged, null for trees
 
-        public IndexEntry(String type, String hash, String path) {
+        public IndexEntry(String type, ObjectId id, String path) {
             this.type = type;
-            this.hash = hash;
+            this.id = id;
             this.path = path;
             this.deleted = false;
         }
 
-        public IndexEntry(String type, String hash, String path, boolean deleted) {
+        public IndexEntry(String type, ObjectId id, String path, boolean deleted) {
             this.type = type;
-            this.hash = hash;
+            this.id = id;
             this.path = path;
             this.deleted = deleted;
         }
+
+        public IndexEntry(String type, ObjectId id, String path, FileStat stat) {
+            this(type, id, path);
+            this.stat = stat;
+        }
         
         @Override
         public String toString() {
-            return String.format("%s %s %s%s", type, hash, path, deleted ? " deleted" : "");
+            String statPart = stat != null ? " " + stat : "";
+            return String.format("%s %s %s%s%s", type, id, path, statPart, deleted ? " deleted" : "");
         }
     }
 
+    /**
+     * Object IDs are the SHA-1 of the uncompressed content, so they don't depend on which
+     * codec the object is stored with.
+     */
     public static String generateUniqueFileName(String filePath) throws IOException, NoSuchAlgorithmException {
-        byte[] fileContent;
         if (filePath.startsWith("tree_content:")) {
-            fileContent = filePath.substring("tree_content:".length()).getBytes();
-        } else {
-            fileContent = Files.readAllBytes(Paths.get(filePath));
+            return hashContent(filePath.substring("tree_content:".length()).getBytes()).name();
         }
-        fileContent = maybeCompress(fileContent);
-        MessageDigest digest = MessageDigest.getInstance("SHA-1");
-        byte[] hashBytes = digest.digest(fileContent);
-        StringBuilder hashString = new StringBuilder();
-        for (byte b : hashBytes) {
-            hashString.append(String.format("%02x", b));
-        }
-        return hashString.toString();
+        return hashFile(filePath).name();
     }
 
-    private List<IndexEntry> readIndex(String repoPath) throws IOException {
-        File indexFile = new File(repoPath, "git/index");
-        List<IndexEntry> entries = new ArrayList<>();
-        if (!indexFile.exists()) {
-            return entries;
-        }
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(" ", 4); // Changed to handle deletion status
-                if (parts.length >= 3) {
-                    boolean deleted = parts.length == 4 && parts[3].equals("deleted");
-                    entries.add(new IndexEntry(parts[0], parts[1], parts[2], deleted));
-                }
-            }
-        }
-        return entries;
+    static ObjectId hashContent(byte[] content) throws NoSuchAlgorithmException {
+        return ObjectId.fromRaw(MessageDigest.getInstance("SHA-1").digest(content));
     }
 
-    private void writeIndex(List<IndexEntry> entries, String repoPath) throws IOException {
-        entries.sort(Comparator.comparing(e -> e.path));
-        
-        File indexFile = new File(repoPath, "git/index");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile))) {
-            for (IndexEntry entry : entries) {
-                writer.write(entry.toString());
-                writer.newLine();
+    static ObjectId hashFile(String filePath) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        // Stream the file into the digest so large files are never held in memory
+        RepositoryListener listener = Instrumentation.listener();
+        long start = System.nanoTime();
+        long total = 0;
+        try (InputStream in = new FileInputStream(filePath)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                total += read;
             }
         }
+        listener.bytesRead(total);
+        listener.bytesHashed(total);
+        listener.phase(RepositoryListener.Phase.HASH, System.nanoTime() - start);
+        return ObjectId.fromRaw(digest.digest());
     }
 
     private String getRelativePath(File file, String workingDir) {
@@ -89,189 +95,443 @@ public class Blob {
         return workingPath.relativize(filePath).toString().replace('\\', '/');
     }
 
-    private boolean hasFileChanged(File file, String existingHash) throws IOException, NoSuchAlgorithmException {
-        if (!file.exists()) {
-            return true;
+    static boolean isStatClean(File file, IndexEntry existing, IndexSession index) throws IOException {
+        if (existing == null || existing.deleted || existing.stat == null || !existing.type.equals("blob")) {
+            return false;
+        }
+        return isStatClean(FileStat.of(file.toPath()), existing, index);
+    }
+
+    /** Same as above for a stat that was already taken, such as by a directory scan. */
+    static boolean isStatClean(FileStat current, IndexEntry existing, IndexSession index) {
+        if (existing == null || existing.deleted || existing.stat == null || !existing.type.equals("blob")) {
+            return false;
         }
-        String newHash = generateUniqueFileName(file.getAbsolutePath());
-        return !newHash.equals(existingHash);
+        if (existing.stat.isRacy(index.timestamp())) {
+            return false;
+        }
+        return existing.stat.matches(current);
     }
 
-    public void createBlob(String filePath, String repoPath) throws IOException, NoSuchAlgorithmException {
+    public String createBlob(String filePath, String repoPath) throws IOException, NoSuchAlgorithmException {
+        ObjectStore.open(repoPath).revalidate();
+        IndexSession index = IndexSession.open(repoPath);
+        ObjectId id = createBlob(filePath, repoPath, index);
+        index.flush();
+        return id.name();
+    }
+
+    private ObjectId createBlob(String filePath, String repoPath, IndexSession index) throws IOException, NoSuchAlgorithmException {
         File file = new File(filePath);
         String relativePath = getRelativePath(file, new File(repoPath).getParent());
-        String uniqueFileName = generateUniqueFileName(filePath);
-        File objectsDir = new File(repoPath, "git/objects");
-        if (!objectsDir.exists()) {
-            if (!objectsDir.mkdirs()) {
-                throw new IOException("Failed to create objects directory.");
+        // Stat before reading so a concurrent modification shows up as a mismatch next time
+        return createBlob(file.toPath(), relativePath, FileStat.of(file.toPath()), repoPath, index);
+    }
+
+    /** Stores a file whose stat was already taken, before any of its content was read. */
+    private ObjectId createBlob(Path file, String relativePath, FileStat stat, String repoPath, IndexSession index)
+            throws IOException, NoSuchAlgorithmException {
+        ObjectStore store = ObjectStore.open(repoPath);
+        ObjectId id;
+        try (InputStream in = Files.newInputStream(file)) {
+            if (CHUNKING_THRESHOLD > 0 && stat.size >= CHUNKING_THRESHOLD) {
+                id = ingestChunked(in, store);
+            } else {
+                id = ingest(in, store);
             }
         }
-        
-        File blobFile = new File(objectsDir, uniqueFileName);
-        if (!blobFile.exists()) {
-            byte[] fileContent = Files.readAllBytes(Paths.get(filePath));
-            fileContent = maybeCompress(fileContent);
-            Files.write(blobFile.toPath(), fileContent);
-            System.out.println("Blob created: " + uniqueFileName);
-        } else {
-            System.out.println("Blob already exists: " + uniqueFileName);
+
+        index.put(new IndexEntry("blob", id, relativePath, stat));
+        return id;
+    }
+
+    /**
+     * Stages many files against one index session. Each file is read and hashed on its own
+     * thread, files whose stat data matches the index are skipped, and the index is flushed
+     * once at the end. Results are returned in the order of the given paths. At most
+     * {@link #IO_PARALLELISM} files are open at once, however many threads the executor has.
+     */
+    public List<StageResult> stageAll(Collection<Path> files, String repoPath) throws IOException {
+        ObjectStore.open(repoPath).revalidate();
+        IndexSession index = IndexSession.open(repoPath);
+        List<Future<StageResult>> futures = new ArrayList<>(files.size());
+        ExecutorService executor = newIoExecutor();
+        Semaphore inFlight = new Semaphore(IO_PARALLELISM);
+        try {
+            for (Path file : files) {
+                inFlight.acquire();
+                futures.add(executor.submit(() -> {
+                    try {
+                        return stageFile(file, repoPath, index);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            List<StageResult> results = new ArrayList<>(files.size());
+            for (Future<StageResult> future : futures) {
+                results.add(future.get());
+            }
+            index.flush();
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while staging files");
+        } catch (ExecutionException e) {
+            throw new IOException("Staging failed", e.getCause());
+        } finally {
+            executor.shutdown();
         }
-        
-        updateIndex("blob", uniqueFileName, relativePath, repoPath);
     }
 
-    private void updateIndex(String type, String hash, String path, String repoPath) throws IOException {
-        List<IndexEntry> entries = readIndex(repoPath);
-        
-        entries = entries.stream()
-            .filter(e -> !e.path.equals(path))
-            .collect(Collectors.toList());
-        
-        entries.add(new IndexEntry(type, hash, path));
-        
-        writeIndex(entries, repoPath);
+    public List<StageResult> stageDirectory(Path directory, String repoPath) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        String workingDir = new File(repoPath).getParent();
+        IgnoreRules ignore = IgnoreRules.load(workingDir);
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, java.nio.file.attribute.BasicFileAttributes attrs) throws IOException {
+                String relativePath = getRelativePath(dir.toFile(), workingDir);
+                return !relativePath.isEmpty() && ignore.isExcluded(relativePath, true) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, java.nio.file.attribute.BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && !ignore.isExcluded(getRelativePath(file.toFile(), workingDir), false)) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return stageAll(files, repoPath);
+    }
+
+    private StageResult stageFile(Path file, String repoPath, IndexSession index) {
+        try {
+            if (!Files.exists(file)) {
+                return StageResult.failed(file, "File does not exist");
+            }
+            if (Files.isDirectory(file)) {
+                return StageResult.failed(file, "Cannot stage a directory");
+            }
+            String relativePath = getRelativePath(file.toFile(), new File(repoPath).getParent());
+            IndexEntry cached = index.get(relativePath);
+            if (isStatClean(file.toFile(), cached, index)) {
+                return StageResult.unchanged(file, cached.id.name());
+            }
+            return StageResult.staged(file, createBlob(file.toString(), repoPath, index).name());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return StageResult.failed(file, e.getMessage());
+        }
+    }
+
+    /**
+     * Staging is I/O bound, so it runs on virtual threads when the JVM has them (Java 21+)
+     * and on a bounded platform thread pool otherwise. The virtual-thread executor has no
+     * bound of its own, so callers cap in-flight tasks at {@link #IO_PARALLELISM}.
+     */
+    private static ExecutorService newIoExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(IO_PARALLELISM);
+        }
+    }
+
+    /**
+     * Reads the stream exactly once, hashing the content while it is encoded into a temp
+     * file in the objects directory. The codec is picked from the first block read. The temp
+     * file is then renamed to its hash, or dropped if an object with that hash is already stored.
+     */
+    private static ObjectId ingest(InputStream in, ObjectStore store) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        RepositoryListener listener = Instrumentation.listener();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read = in.readNBytes(buffer, 0, Math.min(BUFFER_SIZE, ObjectCodecs.SAMPLE_SIZE));
+        ObjectCodec codec = ObjectCodecs.choose(buffer, read);
+        File tempFile = store.createTempFile("ingest");
+        try {
+            long total = 0;
+            long hashNanos = 0;
+            long compressNanos = 0;
+            try (OutputStream out = ObjectStore.encode(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE), codec)) {
+                while (read > 0) {
+                    long start = System.nanoTime();
+                    digest.update(buffer, 0, read);
+                    long hashed = System.nanoTime();
+                    out.write(buffer, 0, read);
+                    compressNanos += System.nanoTime() - hashed;
+                    hashNanos += hashed - start;
+                    total += read;
+                    read = in.read(buffer);
+                }
+            }
+            listener.bytesRead(total);
+            listener.bytesHashed(total);
+            listener.bytesCompressed(tempFile.length());
+            listener.phase(RepositoryListener.Phase.HASH, hashNanos);
+            listener.phase(RepositoryListener.Phase.COMPRESS, compressNanos);
+            ObjectId id = ObjectId.fromRaw(digest.digest());
+            store.install(tempFile, id.name());
+            return id;
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /**
+     * Stores content as separately deduplicated chunks and a manifest under the hash of the
+     * whole content. Chunks shared with an earlier version of the file are only hashed, not
+     * written again.
+     */
+    private static ObjectId ingestChunked(InputStream in, ObjectStore store) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        MessageDigest chunkDigest = MessageDigest.getInstance("SHA-1");
+        RepositoryListener listener = Instrumentation.listener();
+        List<String> chunkHashes = new ArrayList<>();
+        List<Integer> chunkLengths = new ArrayList<>();
+        Chunker chunker = new Chunker(in);
+        byte[] chunk;
+        while ((chunk = chunker.next()) != null) {
+            long start = System.nanoTime();
+            digest.update(chunk);
+            String chunkHash = ObjectId.fromRaw(chunkDigest.digest(chunk)).name();
+            listener.bytesRead(chunk.length);
+            listener.bytesHashed(2L * chunk.length);
+            listener.phase(RepositoryListener.Phase.HASH, System.nanoTime() - start);
+            store.write(chunkHash, chunk);
+            chunkHashes.add(chunkHash);
+            chunkLengths.add(chunk.length);
+        }
+        ObjectId id = ObjectId.fromRaw(digest.digest());
+        store.writeChunked(id.name(), chunkHashes, chunkLengths);
+        return id;
     }
 
     public String createRootTree(String workingDir, String repoPath) throws IOException, NoSuchAlgorithmException {
-        checkForDeletedFiles(workingDir, repoPath);
+        return createRootTree(workingDir, repoPath, DirtyPaths.ALL);
+    }
+
+    /**
+     * Snapshots the working directory, only looking at the given dirty paths. Directories with
+     * nothing dirty below them reuse the tree hash recorded in the index without being listed.
+     * Deleted paths are found in the same walk that builds the trees.
+     */
+    public String createRootTree(String workingDir, String repoPath, DirtyPaths changes) throws IOException, NoSuchAlgorithmException {
+        ObjectStore.open(repoPath).revalidate();
+        IndexSession index = IndexSession.open(repoPath);
+        IgnoreRules ignore = IgnoreRules.load(workingDir);
         
-        File rootDir = new File(workingDir);
-        if (!rootDir.exists() || !rootDir.isDirectory()) {
+        Path rootDir = Paths.get(workingDir);
+        if (!Files.isDirectory(rootDir)) {
             throw new IOException("Invalid working directory: " + workingDir);
         }
-        return createTree(rootDir, repoPath, workingDir);
+        ObjectId treeId;
+        if (SNAPSHOT_PARALLELISM > 1) {
+            treeId = createTreeInParallel(rootDir, repoPath, index, changes, ignore);
+        } else {
+            treeId = createTree(rootDir, "", repoPath, index, changes, ignore);
+        }
+        index.flush();
+        return treeId.name();
     }
 
-    private void checkForDeletedFiles(String workingDir, String repoPath) throws IOException {
-        List<IndexEntry> entries = readIndex(repoPath);
-        Set<String> existingFiles = new HashSet<>();
-        collectExistingFiles(new File(workingDir), workingDir, existingFiles);
-        boolean hasChanges = false;
-        for (IndexEntry entry : entries) {
-            if (!entry.deleted && !existingFiles.contains(entry.path)) {
-                entry.deleted = true;
-                hasChanges = true;
-                System.out.println("Marked as deleted: " + entry.path);
-            }
+    private ObjectId createTreeInParallel(Path rootDir, String repoPath, IndexSession index, DirtyPaths changes, IgnoreRules ignore)
+            throws IOException, NoSuchAlgorithmException {
+        ForkJoinPool pool = new ForkJoinPool(SNAPSHOT_PARALLELISM);
+        try {
+            return pool.invoke(new TreeTask(rootDir, "", repoPath, index, changes, ignore));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
         }
-        
-        if (hasChanges) {
-            writeIndex(entries, repoPath);
+    }
+
+    /** Builds one subtree; subdirectories are forked as their own tasks. */
+    @SuppressWarnings("serial")  // Fork/join tasks are serializable but never serialized
+    private class TreeTask extends RecursiveTask<ObjectId> {
+        private final Path directory;
+        private final String dirPath;
+        private final String repoPath;
+        private final IndexSession index;
+        private final DirtyPaths changes;
+        private final IgnoreRules ignore;
+
+        TreeTask(Path directory, String dirPath, String repoPath, IndexSession index, DirtyPaths changes, IgnoreRules ignore) {
+            this.directory = directory;
+            this.dirPath = dirPath;
+            this.repoPath = repoPath;
+            this.index = index;
+            this.changes = changes;
+            this.ignore = ignore;
+        }
+
+        @Override
+        protected ObjectId compute() {
+            try {
+                return createTree(directory, dirPath, repoPath, index, changes, ignore);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
         }
     }
 
-    private void collectExistingFiles(File directory, String workingDir, Set<String> existingFiles) {
-        if (directory.getName().equals("git")) return;
-        
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.getName().equals("git")) continue;
-                
-                String relativePath = getRelativePath(file, workingDir);
-                if (file.isFile()) {
-                    existingFiles.add(relativePath);
-                } else if (file.isDirectory()) {
-                    existingFiles.add(relativePath);
-                    collectExistingFiles(file, workingDir, existingFiles);
+    /**
+     * Marks the tracked children of a directory that are missing from its listing as deleted,
+     * together with everything tracked below them. Children that are ignored now are left
+     * out of the listing, so they count as deleted too. Returns true if anything was marked.
+     */
+    private boolean markMissingChildren(String dirPath, List<DirectoryScanner.Entry> listing, IndexSession index) {
+        Set<String> present = new HashSet<>();
+        for (DirectoryScanner.Entry entry : listing) {
+            present.add(entry.path);
+        }
+        boolean marked = false;
+        for (String child : index.children(dirPath)) {
+            if (!present.contains(child)) {
+                for (String path : index.markSubtreeDeleted(child)) {
+                    Instrumentation.listener().pathDeleted(path);
+                    marked = true;
                 }
             }
         }
+        return marked;
     }
 
     public void removeFromIndex(String filePath, String repoPath) throws IOException {
-        List<IndexEntry> entries = readIndex(repoPath);
+        IndexSession index = IndexSession.open(repoPath);
         String relativePath = getRelativePath(new File(filePath), new File(repoPath).getParent());
         
-        boolean found = false;
-        for (IndexEntry entry : entries) {
-            if (entry.path.equals(relativePath)) {
-                entry.deleted = true;
-                found = true;
-                System.out.println("Marked as deleted in index: " + relativePath);
-                break;
-            }
-        }
-        
-        if (found) {
-            writeIndex(entries, repoPath);
+        if (index.get(relativePath) != null) {
+            index.markDeleted(relativePath);
+            System.out.println("Marked as deleted in index: " + relativePath);
+            index.flush();
         } else {
             System.out.println("File not found in index: " + relativePath);
         }
     }
 
     public void cleanIndex(String repoPath) throws IOException {
-        List<IndexEntry> entries = readIndex(repoPath);
-        List<IndexEntry> cleanedEntries = entries.stream()
-            .filter(entry -> !entry.deleted)
-            .collect(Collectors.toList());
-        
-        if (cleanedEntries.size() < entries.size()) {
-            writeIndex(cleanedEntries, repoPath);
-            System.out.println("Cleaned " + (entries.size() - cleanedEntries.size()) + " deleted entries from index");
+        IndexSession index = IndexSession.open(repoPath);
+        int removed = index.removeDeleted();
+        if (removed > 0) {
+            index.flush();
+            System.out.println("Cleaned " + removed + " deleted entries from index");
         }
     }
 
     public String createTree(File directory, String repoPath, String workingDir) throws IOException, NoSuchAlgorithmException {
+        IndexSession index = IndexSession.open(repoPath);
+        String dirPath = getRelativePath(directory, workingDir);
+        IgnoreRules ignore = IgnoreRules.load(workingDir).forPath(dirPath.contains("/") ? dirPath.substring(0, dirPath.lastIndexOf('/')) : "");
+        ObjectId treeId = createTree(directory.toPath(), dirPath, repoPath, index, DirtyPaths.ALL, ignore);
+        index.flush();
+        return treeId.name();
+    }
+
+    /**
+     * Builds the tree for a directory. A directory whose children are all unchanged reuses
+     * the tree hash recorded in the index instead of rebuilding and rewriting its tree object;
+     * the index drops that hash whenever anything below the directory is staged or deleted.
+     * The ignore rules are those of the enclosing directory; ignored children are skipped
+     * before they are looked at any further, so ignored directories are never listed.
+     */
+    private ObjectId createTree(Path directory, String dirPath, String repoPath, IndexSession index, DirtyPaths changes,
+            IgnoreRules enclosing) throws IOException, NoSuchAlgorithmException {
+        IndexEntry cachedTree = index.get(dirPath);
+        boolean hasCachedTree = cachedTree != null && !cachedTree.deleted && cachedTree.type.equals("tree");
+        if (hasCachedTree && !changes.needsVisit(dirPath)) {
+            // Nothing below this directory is dirty, so it is not even listed
+            return cachedTree.id;
+        }
+
+        IgnoreRules ignore = enclosing.forDirectory(dirPath);
         StringBuilder treeContent = new StringBuilder();
-        File[] entries = directory.listFiles();
-    
-        if (entries != null) {
-            // Sort entries for consistent tree hashing
-            Arrays.sort(entries, Comparator.comparing(File::getName));
-    
-            for (File entry : entries) {
-                if (entry.getName().equals("git")) continue;
-    
-                String relativePath = getRelativePath(entry, workingDir);  // Get full relative path
-                String hash;
-    
-                if (entry.isDirectory()) {
-                    // Recursively create trees for subdirectories
-                    hash = createTree(entry, repoPath, workingDir);
-                    // Append to tree content with full relative path
-                    treeContent.append("tree ").append(hash).append(" ").append(relativePath).append("\n");
-                    updateIndex("tree", hash, relativePath, repoPath);
+        RepositoryListener listener = Instrumentation.listener();
+        List<DirectoryScanner.Entry> entries = DirectoryScanner.list(directory, dirPath, ignore);
+        boolean changed = markMissingChildren(dirPath, entries, index);
+
+        // Recorded hashes of the subdirectories, taken before any of them can be rebuilt
+        IndexEntry[] recorded = new IndexEntry[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).directory) {
+                recorded[i] = index.get(entries.get(i).path);
+            }
+        }
+
+        // Inside a fork/join pool each subdirectory is forked first so it builds while the files here are hashed
+        boolean parallel = ForkJoinTask.inForkJoinPool();
+        TreeTask[] subtrees = new TreeTask[entries.size()];
+        if (parallel) {
+            for (int i = 0; i < entries.size(); i++) {
+                DirectoryScanner.Entry entry = entries.get(i);
+                if (entry.directory) {
+                    subtrees[i] = new TreeTask(entry.file, entry.path, repoPath, index, changes, ignore);
+                    subtrees[i].fork();
+                }
+            }
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            DirectoryScanner.Entry entry = entries.get(i);
+            String relativePath = entry.path;  // Get full relative path
+            ObjectId id;
+
+            if (entry.directory) {
+                // Recursively create trees for subdirectories
+                id = parallel ? subtrees[i].join() : createTree(entry.file, relativePath, repoPath, index, changes, ignore);
+                // Append to tree content with full relative path
+                id.appendTo(treeContent.append("tree ")).append(" ").append(relativePath).append("\n");
+                changed |= !isRecordedTree(recorded[i], id);
+            } else {
+                // Create blob for the file
+                IndexEntry cached = index.get(relativePath);
+                if (!changes.isDirty(relativePath) && cached != null && !cached.deleted) {
+                    // The watcher saw no change to this file since it was staged
+                    id = cached.id;
+                } else if (isStatClean(entry.stat, cached, index) && ObjectStore.open(repoPath).contains(cached.id.name())) {
+                    // Stat data is unchanged since it was staged, reuse the recorded hash
+                    id = cached.id;
                 } else {
-                    // Create blob for the file
-                    createBlob(entry.getAbsolutePath(), repoPath);
-                    hash = generateUniqueFileName(entry.getAbsolutePath());
-                    // Append to tree content with full relative path
-                    treeContent.append("blob ").append(hash).append(" ").append(relativePath).append("\n");
+                    id = createBlob(entry.file, relativePath, entry.stat, repoPath, index);
+                    changed |= cached == null || cached.deleted || !cached.id.equals(id);
                 }
+                // Append to tree content with full relative path
+                id.appendTo(treeContent.append("blob ")).append(" ").append(relativePath).append("\n");
             }
         }
+
+        cachedTree = index.get(dirPath);
+        if (!changed && cachedTree != null && !cachedTree.deleted && cachedTree.type.equals("tree")) {
+            return cachedTree.id;
+        }
     
-        // Generate SHA-1 for the entire tree content
-        String treeHash = generateUniqueFileName("tree_content:" + treeContent.toString());
+        byte[] content = treeContent.toString().getBytes();
+        long hashStart = System.nanoTime();
+        ObjectId treeId = hashContent(content);
+        listener.bytesHashed(content.length);
+        listener.phase(RepositoryListener.Phase.HASH, System.nanoTime() - hashStart);
     
         // Save the tree object to the git/objects directory
-        File objectsDir = new File(repoPath, "git/objects");
-        File treeFile = new File(objectsDir, treeHash);
-        if (!treeFile.exists()) {
-            byte[] content = treeContent.toString().getBytes();
-            content = maybeCompress(content);
-            Files.write(treeFile.toPath(), content);
-            System.out.println("Tree created: " + treeHash);
-        }
+        ObjectStore.open(repoPath).write(treeId.name(), content);
+        index.put(new IndexEntry("tree", treeId, dirPath));
     
-        return treeHash;
+        return treeId;
     }
 
-    private static byte[] maybeCompress(byte[] data) throws IOException {
-        if (COMPRESSION_ENABLED) {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
-                gzipOutputStream.write(data);
-            }
-            return byteArrayOutputStream.toByteArray();
-        }
-        return data;
+    private static boolean isRecordedTree(IndexEntry recorded, ObjectId id) {
+        return recorded != null && !recorded.deleted && recorded.type.equals("tree") && recorded.id.equals(id);
     }
 
     public void resetTestFiles(String repoPath) {
         File gitDir = new File(repoPath, "git");
+        ObjectStore.close(repoPath);
         if (gitDir.exists()) {
             deleteDirectory(gitDir);
             System.out.println("Test files reset.");
@@ -293,13 +553,38 @@ public class Blob {
     }
 
     public void updateHead(String commitHash, String repoPath) throws IOException {
+        writeHead(null, commitHash, repoPath, false);
+    }
+
+    /**
+     * Moves HEAD to commitHash only if it still points at expected (null for no commit yet).
+     * Returns false, leaving HEAD alone, if another commit moved it first.
+     */
+    public boolean compareAndSetHead(String expected, String commitHash, String repoPath) throws IOException {
+        return writeHead(expected, commitHash, repoPath, true);
+    }
+
+    private boolean writeHead(String expected, String commitHash, String repoPath, boolean compare) throws IOException {
         File headFile = new File(repoPath, "git/HEAD");
         if (!headFile.exists()) {
             throw new IOException("HEAD file does not exist. Repository may not be initialized properly.");
         }
         
-        Files.write(headFile.toPath(), commitHash.getBytes());
-        System.out.println("HEAD updated to commit: " + commitHash);
+        long start = System.nanoTime();
+        ReentrantLock lock = RepositoryLocks.forRepo(repoPath).headLock();
+        lock.lock();
+        try (LockFile lockFile = LockFile.acquire(headFile)) {
+            if (compare && !Objects.equals(expected, getCurrentCommitHash(repoPath))) {
+                return false;
+            }
+            lockFile.write(commitHash.getBytes());
+            lockFile.commit();
+        } finally {
+            lock.unlock();
+        }
+        Instrumentation.listener().phase(RepositoryListener.Phase.WRITE, System.nanoTime() - start);
+        Instrumentation.listener().headUpdated(commitHash);
+        return true;
     }
 
     public String getCurrentCommitHash(String repoPath) throws IOException {
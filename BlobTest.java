@@ -15,17 +15,22 @@ public class BlobTest {
         System.out.println("\nContents of objects directory:");
         File objectsDir = new File(repoPath + "/git/objects");
         if (objectsDir.exists()) {
-            String[] objects = objectsDir.list();
-            if (objects != null) {
-                for (String object : objects) {
-                    System.out.println(" - " + object);
+            File[] fanOutDirs = objectsDir.listFiles(File::isDirectory);
+            if (fanOutDirs != null) {
+                for (File fanOutDir : fanOutDirs) {
+                    String[] objects = fanOutDir.list();
+                    if (objects != null) {
+                        for (String object : objects) {
+                            System.out.println(" - " + fanOutDir.getName() + object);
+                        }
+                    }
                 }
             }
         }
         System.out.println("\nContents of index file:");
         File indexFile = new File(repoPath + "/git/index");
         if (indexFile.exists()) {
-            Files.readAllLines(indexFile.toPath()).forEach(System.out::println);
+            IndexSession.open(repoPath).entries().forEach(System.out::println);
         }
     }
     
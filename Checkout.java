@@ -0,0 +1,201 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Restores the working directory to a commit's tree. The target tree is compared with the
+ * index, subtrees whose recorded hash already matches are skipped whole, and only files
+ * whose blob differs are written (in parallel) or deleted. The index is then updated with
+ * fresh stat data for everything written.
+ *
+ * Files whose blob is the same in the index and the target are left as they are, local
+ * changes included. If a file that has to be replaced or deleted has local changes, or an
+ * untracked file is in the way of one the target has, the checkout is refused before
+ * anything on disk is touched.
+ */
+public class Checkout {
+    private final String repoPath;
+    private final File workingDir;
+    private final ObjectDatabase objects;
+    private final IndexSession index;
+
+    private final List<TreeEntry> toWrite = new ArrayList<>();
+    private final List<String> toDelete = new ArrayList<>();
+    private final List<String> modified = new ArrayList<>();
+    private final List<String> untracked = new ArrayList<>();
+    private final List<TreeEntry> visitedTrees = new ArrayList<>();
+    private int deleted;
+    private int skipped;
+
+    private Checkout(String repoPath) throws IOException {
+        this.repoPath = repoPath;
+        this.workingDir = new File(repoPath).getAbsoluteFile().getParentFile();
+        this.objects = ObjectDatabase.open(repoPath);
+        this.index = IndexSession.open(repoPath);
+    }
+
+    public static void checkout(String commitHash, String repoPath) throws IOException, NoSuchAlgorithmException {
+        new Checkout(repoPath).run(commitHash);
+    }
+
+    private void run(String commitHash) throws IOException, NoSuchAlgorithmException {
+        Commit commit = objects.readCommit(commitHash);
+        checkoutTree(objects.readTree(commit.getTree()), "");
+        if (!modified.isEmpty()) {
+            throw new IOException("Checkout would overwrite local changes to " + String.join(", ", modified)
+                + "; commit or discard them first");
+        }
+        if (!untracked.isEmpty()) {
+            throw new IOException("Checkout would overwrite untracked files " + String.join(", ", untracked)
+                + "; move or remove them first");
+        }
+        for (String path : toDelete) {
+            deletePath(path);
+        }
+        for (TreeEntry tree : visitedTrees) {
+            File dir = new File(workingDir, tree.getPath());
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create directory " + dir);
+            }
+        }
+        writeFiles();
+        // Tree entries are recorded last, since staging the written blobs invalidates them
+        for (TreeEntry tree : visitedTrees) {
+            index.put(new Blob.IndexEntry("tree", ObjectId.fromHex(tree.getHash()), tree.getPath()));
+        }
+        index.put(new Blob.IndexEntry("tree", commit.getTreeId(), ""));
+        index.flush();
+        new Blob().updateHead(commitHash, repoPath);
+        System.out.println("Checked out " + commitHash + ": " + toWrite.size() + " written, "
+            + deleted + " deleted, " + skipped + " unchanged");
+    }
+
+    private void checkoutTree(List<TreeEntry> entries, String dirPath) throws IOException, NoSuchAlgorithmException {
+        Set<String> targetPaths = new HashSet<>();
+        for (TreeEntry entry : entries) {
+            targetPaths.add(entry.getPath());
+        }
+        // Anything tracked here that the target tree doesn't have is removed
+        for (String child : index.children(dirPath)) {
+            if (!targetPaths.contains(child)) {
+                planDelete(child);
+            }
+        }
+
+        for (TreeEntry entry : entries) {
+            Blob.IndexEntry existing = index.get(entry.getPath());
+            File file = new File(workingDir, entry.getPath());
+            if (entry.isTree()) {
+                if (existing != null && !existing.deleted && existing.id.equals(ObjectId.fromHex(entry.getHash())) && file.isDirectory()) {
+                    skipped++;
+                    continue;
+                }
+                if (existing != null && !existing.type.equals("tree")) {
+                    planDelete(entry.getPath());
+                }
+                visitedTrees.add(entry);
+                checkoutTree(objects.readTree(entry.getHash()), entry.getPath());
+            } else {
+                if (existing != null && existing.type.equals("tree")) {
+                    planDelete(entry.getPath());
+                    existing = null;
+                }
+                if (existing != null && !existing.deleted && existing.id.equals(ObjectId.fromHex(entry.getHash()))) {
+                    // Same blob on both sides, so whatever is on disk stays, local edits included
+                    skipped++;
+                } else {
+                    if (existing != null && !existing.deleted) {
+                        if (isModified(file, existing)) {
+                            modified.add(entry.getPath());
+                        }
+                    } else if (file.isFile() && !Blob.hashFile(file.getPath()).equals(ObjectId.fromHex(entry.getHash()))) {
+                        untracked.add(entry.getPath());
+                    }
+                    toWrite.add(entry);
+                }
+            }
+        }
+    }
+
+    /** Whether a tracked file has content that isn't in the index, which checkout must not lose. */
+    private boolean isModified(File file, Blob.IndexEntry existing) throws IOException, NoSuchAlgorithmException {
+        if (!file.isFile() || Blob.isStatClean(file, existing, index)) {
+            return false;
+        }
+        return !Blob.hashFile(file.getPath()).equals(existing.id);
+    }
+
+    /** Queues a path and everything tracked below it for deletion, noting any with local changes. */
+    private void planDelete(String path) throws IOException, NoSuchAlgorithmException {
+        for (Blob.IndexEntry entry : index.subtree(path)) {
+            if (entry.type.equals("blob") && !entry.deleted && isModified(new File(workingDir, entry.path), entry)) {
+                modified.add(entry.path);
+            }
+        }
+        toDelete.add(path);
+    }
+
+    /**
+     * Deletes the tracked files at or below a path, then any directories left empty. Entries
+     * marked deleted (removed from the index, or newly ignored) are only dropped from the
+     * index, since their files are no longer tracked.
+     */
+    private void deletePath(String path) throws IOException {
+        List<Blob.IndexEntry> removed = index.removeSubtree(path);
+        // Deepest paths first, so directories are empty by the time they are reached
+        removed.sort(Comparator.comparing((Blob.IndexEntry entry) -> entry.path).reversed());
+        for (Blob.IndexEntry entry : removed) {
+            File file = new File(workingDir, entry.path);
+            if (entry.type.equals("blob") && !entry.deleted && file.isFile()) {
+                Files.delete(file.toPath());
+                deleted++;
+            } else if (file.isDirectory()) {
+                String[] remaining = file.list();
+                if (remaining != null && remaining.length == 0) {
+                    Files.delete(file.toPath());
+                }
+            }
+        }
+    }
+
+    private void writeFiles() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Blob.IndexEntry>> futures = new ArrayList<>();
+            for (TreeEntry entry : toWrite) {
+                futures.add(executor.submit(() -> writeFile(entry)));
+            }
+            for (Future<Blob.IndexEntry> future : futures) {
+                index.put(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during checkout");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Checkout failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Blob.IndexEntry writeFile(TreeEntry entry) throws IOException {
+        Path target = new File(workingDir, entry.getPath()).toPath();
+        Files.createDirectories(target.getParent());
+        // Not Files.createTempFile, which would leave the checked out file readable by its owner only
+        Path tempFile = target.resolveSibling("." + target.getFileName() + ".checkout.tmp");
+        try {
+            try (InputStream in = objects.openBlob(entry.getHash())) {
+                Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return new Blob.IndexEntry("blob", ObjectId.fromHex(entry.getHash()), entry.getPath(), FileStat.of(target));
+    }
+}
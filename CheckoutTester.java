@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+
+public class CheckoutTester {
+    public static void main(String[] args) {
+        try {
+            Path workingDir = Files.createTempDirectory("checkout-test");
+            Path repo = workingDir.resolve("repo");
+            Files.createDirectories(repo);
+            new Git().initRepo(repo.toString());
+            GitInterface git = new GitInterfaceImpl(repo.toString());
+
+            Files.write(repo.resolve("a.txt"), "A1".getBytes());
+            Files.write(repo.resolve("b.txt"), "B1".getBytes());
+            String first = git.commit("Tester", "First commit");
+            Files.write(repo.resolve("b.txt"), "B2".getBytes());
+            Files.write(repo.resolve("new.txt"), "N2".getBytes());
+            String second = git.commit("Tester", "Second commit");
+
+            testCleanCheckout(repo, first);
+            testEditedTrackedFile(repo, second);
+            testUntrackedFile(repo, second);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void testCleanCheckout(Path repo, String first) throws IOException, NoSuchAlgorithmException {
+        Checkout.checkout(first, repo.toString());
+        boolean restored = read(repo, "b.txt").equals("B1") && !Files.exists(repo.resolve("new.txt"));
+        if (restored) {
+            System.out.println("Verification: a clean checkout restores b.txt and removes new.txt.");
+        } else {
+            System.out.println("Verification Failed: the clean checkout left the wrong files.");
+        }
+    }
+
+    private static void testEditedTrackedFile(Path repo, String second) throws IOException, NoSuchAlgorithmException {
+        Files.write(repo.resolve("b.txt"), "local edit".getBytes());
+        expectRefusal(repo, second, "b.txt");
+        if (read(repo, "b.txt").equals("local edit")) {
+            System.out.println("Verification: the local edit to b.txt was kept.");
+        } else {
+            System.out.println("Verification Failed: the local edit to b.txt was overwritten.");
+        }
+        Files.write(repo.resolve("b.txt"), "B1".getBytes());
+    }
+
+    private static void testUntrackedFile(Path repo, String second) throws IOException, NoSuchAlgorithmException {
+        Files.write(repo.resolve("new.txt"), "PRECIOUS untracked".getBytes());
+        expectRefusal(repo, second, "new.txt");
+        if (read(repo, "new.txt").equals("PRECIOUS untracked")) {
+            System.out.println("Verification: the untracked new.txt was kept.");
+        } else {
+            System.out.println("Verification Failed: the untracked new.txt was overwritten.");
+        }
+        Files.delete(repo.resolve("new.txt"));
+        Checkout.checkout(second, repo.toString());
+        if (read(repo, "new.txt").equals("N2")) {
+            System.out.println("Verification: once it is moved away, checkout writes new.txt.");
+        } else {
+            System.out.println("Verification Failed: new.txt was not written.");
+        }
+    }
+
+    private static void expectRefusal(Path repo, String commitHash, String path) throws NoSuchAlgorithmException {
+        try {
+            Checkout.checkout(commitHash, repo.toString());
+            System.out.println("Verification Failed: checkout went ahead over " + path + ".");
+        } catch (IOException e) {
+            System.out.println("Refused: " + e.getMessage());
+        }
+    }
+
+    private static String read(Path repo, String path) throws IOException {
+        return new String(Files.readAllBytes(repo.resolve(path)));
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks. A gear rolling hash over the last 64 bytes
+ * picks the cut points, so an insertion or an append only changes the chunks around it and
+ * the rest of a new version of a file comes out as the same chunks as before.
+ *
+ * Chunks are between MIN_SIZE and MAX_SIZE bytes and average about AVERAGE_SIZE.
+ */
+public class Chunker {
+    static final int MIN_SIZE = 256 * 1024;
+    static final int AVERAGE_SIZE = 1024 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+    // A cut where the top log2(AVERAGE_SIZE) bits of the hash are all zero, on average once every
+    // AVERAGE_SIZE bytes. The hash shifts left once per byte, so the low bits only see the last
+    // few bytes while the top bits see the whole window.
+    private static final long MASK = (AVERAGE_SIZE - 1L) << (Long.SIZE - Integer.numberOfTrailingZeros(AVERAGE_SIZE));
+    // The gear hash only depends on the last 64 bytes, so hashing can start this far before MIN_SIZE
+    private static final int WINDOW = 64;
+
+    // Fixed seed: cut points have to be the same in every process for chunks to be shared
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x67656172L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_SIZE];
+    private int length;
+
+    public Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    /** The next chunk, or null at the end of the stream. */
+    public byte[] next() throws IOException {
+        length += in.readNBytes(buffer, length, buffer.length - length);
+        if (length == 0) {
+            return null;
+        }
+        int cut = findCut();
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, length - cut);
+        length -= cut;
+        return chunk;
+    }
+
+    private int findCut() {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        long hash = 0;
+        for (int i = MIN_SIZE - WINDOW; i < length; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if (i >= MIN_SIZE && (hash & MASK) == 0) {
+                return i + 1;
+            }
+        }
+        // No cut point within MAX_SIZE bytes, or the end of the stream
+        return length;
+    }
+}
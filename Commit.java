@@ -5,13 +5,17 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public class Commit {
-    private final String tree;
-    private final String parent;
+    private final ObjectId tree;
+    private final ObjectId parent;
     private final String author;
     private final String date;
     private final String message;
 
     public Commit(String tree, String parent, String author, String date, String message) {
+        this(toId(tree), toId(parent), author, date, message);
+    }
+
+    private Commit(ObjectId tree, ObjectId parent, String author, String date, String message) {
         this.tree = tree;
         this.parent = parent;
         this.author = author;
@@ -19,11 +23,83 @@ public class Commit {
         this.message = message;
     }
 
+    private static ObjectId toId(String hash) {
+        return hash == null || hash.isEmpty() ? null : ObjectId.fromHex(hash);
+    }
+
+    public String getTree() {
+        return tree != null ? tree.name() : null;
+    }
+
+    public String getParent() {
+        return parent != null ? parent.name() : null;
+    }
+
+    public ObjectId getTreeId() {
+        return tree;
+    }
+
+    /** Null for the first commit. */
+    public ObjectId getParentId() {
+        return parent;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /** Parses the content of a commit object as written by toString(). */
+    public static Commit parse(String content) throws IOException {
+        String tree = null;
+        String parent = null;
+        String author = null;
+        String date = null;
+        String message = null;
+        int start = 0;
+        while (start < content.length()) {
+            int end = content.indexOf('\n', start);
+            if (end < 0) {
+                end = content.length();
+            }
+            String line = content.substring(start, end);
+            if (line.startsWith("message: ")) {
+                // The message is always last and may itself span several lines
+                message = content.substring(start + "message: ".length()).replaceAll("\n$", "");
+                break;
+            } else if (line.startsWith("tree: ")) {
+                tree = line.substring("tree: ".length());
+            } else if (line.startsWith("parent: ")) {
+                parent = line.substring("parent: ".length());
+            } else if (line.startsWith("author: ")) {
+                author = line.substring("author: ".length());
+            } else if (line.startsWith("date: ")) {
+                date = line.substring("date: ".length());
+            }
+            start = end + 1;
+        }
+        if (tree == null) {
+            throw new IOException("Malformed commit, no tree line");
+        }
+        return new Commit(tree, parent, author, date, message);
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("tree: ").append(tree).append("\n");
-        if (parent != null && !parent.isEmpty()) {
-            sb.append("parent: ").append(parent).append("\n");
+        sb.append("tree: ");
+        if (tree != null) {
+            tree.appendTo(sb);
+        }
+        sb.append("\n");
+        if (parent != null) {
+            parent.appendTo(sb.append("parent: ")).append("\n");
         }
         sb.append("author: ").append(author).append("\n");
         sb.append("date: ").append(date).append("\n");
@@ -32,17 +108,25 @@ public class Commit {
     }
 
     public static class CommitBuilder {
-        private String tree;
-        private String parent;
+        private ObjectId tree;
+        private ObjectId parent;
         private String author;
         private String message;
 
         public CommitBuilder setTree(String tree) {
+            return setTree(toId(tree));
+        }
+
+        public CommitBuilder setTree(ObjectId tree) {
             this.tree = tree;
             return this;
         }
 
         public CommitBuilder setParent(String parent) {
+            return setParent(toId(parent));
+        }
+
+        public CommitBuilder setParent(ObjectId parent) {
             this.parent = parent;
             return this;
         }
@@ -66,28 +150,49 @@ public class Commit {
         }
     }
 
-    public void createCommit(String author, String message, String repoPath) 
+    /** Snapshots the working directory and moves HEAD to a new commit of it. Returns that commit's hash. */
+    public String createCommit(String author, String message, String repoPath) 
             throws IOException, NoSuchAlgorithmException {
         Blob blob = new Blob();
-        String rootTreeHash = blob.createRootTree(new File(repoPath).getParent(), repoPath);
+        String workingDir = new File(repoPath).getParent();
+        String rootTreeHash;
+        WorkingTreeWatcher watcher = WorkingTreeWatcher.forRepo(repoPath);
+        if (watcher != null) {
+            // Only look at the paths the watcher saw change since the last commit
+            DirtyPaths changes = watcher.drain();
+            try {
+                rootTreeHash = blob.createRootTree(workingDir, repoPath, changes);
+            } catch (IOException | RuntimeException e) {
+                watcher.restore(changes);
+                throw e;
+            }
+        } else {
+            rootTreeHash = blob.createRootTree(workingDir, repoPath);
+        }
+        ObjectId treeId = ObjectId.fromHex(rootTreeHash);
         String parentCommit = blob.getCurrentCommitHash(repoPath);
-        Commit commit = new CommitBuilder()
-            .setTree(rootTreeHash)
-            .setParent(parentCommit)
-            .setAuthor(author)
-            .setMessage(message)
-            .build();
-        String commitContent = commit.toString();
-        String commitHash = Blob.generateUniqueFileName("tree_content:" + commitContent);
-        File objectsDir = new File(repoPath, "git/objects");
-        File commitFile = new File(objectsDir, commitHash);
-        
-        if (!commitFile.exists()) {
-            byte[] content = commitContent.getBytes();
-            Files.write(commitFile.toPath(), content);
-            System.out.println("Commit created: " + commitHash);
+        ObjectStore store = ObjectStore.open(repoPath);
+        while (true) {
+            Commit commit = new CommitBuilder()
+                .setTree(treeId)
+                .setParent(parentCommit)
+                .setAuthor(author)
+                .setMessage(message)
+                .build();
+            byte[] commitContent = commit.toString().getBytes();
+            String commitHash = Blob.hashContent(commitContent).name();
+            
+            store.write(commitHash, commitContent);
+            // HEAD must not point at a commit whose objects could still be lost
+            store.sync();
+            if (blob.compareAndSetHead(parentCommit, commitHash, repoPath)) {
+                CommitGraph.open(repoPath).add(commitHash, rootTreeHash, parentCommit);
+                Instrumentation.listener().commitCreated(commitHash);
+                return commitHash;
+            }
+            // Another commit moved HEAD since this one read it, so go on top of that one instead
+            parentCommit = blob.getCurrentCommitHash(repoPath);
         }
-        blob.updateHead(commitHash, repoPath);
     }
     
 }
@@ -0,0 +1,277 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sidecar file git/commit-graph describing the commit history, so it can be walked without
+ * reading commit objects.
+ *
+ * <pre>
+ * header   "GCGR", version (int), commit count (int)
+ * record   commit hash (20 raw bytes), tree hash (20 raw bytes),
+ *          position of the parent record (int, -1 for a root commit), generation (int)
+ * </pre>
+ *
+ * A parent is always written before its children, and the generation is the number of commits
+ * in the history ending at that commit (1 for a root). New records are appended and only
+ * then counted in the header, so an interrupted append leaves the existing records intact.
+ * Appends hold git/commit-graph.lock and reread the file first, so writers in other
+ * processes don't overwrite each other's records.
+ */
+public class CommitGraph {
+    private static final byte[] MAGIC = {'G', 'C', 'G', 'R'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int HASH_SIZE = 20;
+    private static final int RECORD_SIZE = 2 * HASH_SIZE + 8;
+    private static final int NO_PARENT = -1;
+
+    private static final Map<String, CommitGraph> OPEN_GRAPHS = new ConcurrentHashMap<>();
+
+    private final String repoPath;
+    private final File file;
+    private long loadedLength = -1;
+    private long loadedModified = -1;
+
+    private int count;
+    private byte[] commits = new byte[0];
+    private byte[] trees = new byte[0];
+    private int[] parents = new int[0];
+    private int[] generations = new int[0];
+    private final ObjectIdMap<Integer> positions = new ObjectIdMap<>();
+
+    private CommitGraph(String repoPath) {
+        this.repoPath = repoPath;
+        this.file = new File(repoPath, "git/commit-graph");
+    }
+
+    /** The graph for a repository, shared so it is only loaded once per process. */
+    public static CommitGraph open(String repoPath) {
+        String key = new File(repoPath).getAbsolutePath();
+        return OPEN_GRAPHS.computeIfAbsent(key, path -> new CommitGraph(repoPath));
+    }
+
+    /** Records a new commit whose parent (if any) is already stored. */
+    public synchronized void add(String commitHash, String treeHash, String parentHash) throws IOException {
+        load();
+        if (positions.containsKey(ObjectId.fromHex(commitHash))) {
+            return;
+        }
+        // Only held to keep other writers out; the graph file is appended to, not replaced
+        LockFile lock = LockFile.acquire(file);
+        try {
+            load();
+            if (positions.containsKey(ObjectId.fromHex(commitHash))) {
+                return;
+            }
+            int parent = NO_PARENT;
+            if (parentHash != null && !parentHash.isEmpty()) {
+                parent = addHistory(parentHash);
+            }
+            append(Collections.singletonList(new String[] {commitHash, treeHash}), parent);
+        } finally {
+            lock.close();
+        }
+    }
+
+    public synchronized boolean contains(String commitHash) throws IOException {
+        load();
+        return ObjectId.isId(commitHash) && positions.containsKey(ObjectId.fromHex(commitHash));
+    }
+
+    /** Number of commits in the history ending at this commit. */
+    public synchronized int count(String commitHash) throws IOException {
+        return generations[position(commitHash)];
+    }
+
+    public synchronized String getTree(String commitHash) throws IOException {
+        return hashAt(trees, position(commitHash));
+    }
+
+    /** The commit's parent, or null for a root commit. */
+    public synchronized String getParent(String commitHash) throws IOException {
+        int parent = parents[position(commitHash)];
+        return parent == NO_PARENT ? null : hashAt(commits, parent);
+    }
+
+    /** Commits from the given one back to the root, newest first, at most maxCount of them. */
+    public synchronized List<String> log(String commitHash, int maxCount) throws IOException {
+        List<String> history = new ArrayList<>();
+        int current = position(commitHash);
+        while (current != NO_PARENT && history.size() < maxCount) {
+            history.add(hashAt(commits, current));
+            current = parents[current];
+        }
+        return history;
+    }
+
+    /** Every stored commit, oldest first. */
+    public synchronized List<String> commits() throws IOException {
+        load();
+        List<String> all = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            all.add(hashAt(commits, i));
+        }
+        return all;
+    }
+
+    /** True if ancestor is the same commit as descendant or is in its history. */
+    public synchronized boolean isAncestor(String ancestor, String descendant) throws IOException {
+        int current = position(descendant);
+        Integer target = ObjectId.isId(ancestor) ? positions.get(ObjectId.fromHex(ancestor)) : null;
+        if (target == null) {
+            // Everything in the descendant's history is stored by now
+            return false;
+        }
+        // Generations strictly decrease towards the root, so stop once below the ancestor's
+        int targetGeneration = generations[target];
+        while (current != NO_PARENT && generations[current] > targetGeneration) {
+            current = parents[current];
+        }
+        return current == target;
+    }
+
+    /** Position of a commit, reading its history from the commit objects if it is not stored yet. */
+    private int position(String commitHash) throws IOException {
+        load();
+        if (!ObjectId.isId(commitHash)) {
+            throw new IOException("Not a commit id: " + commitHash);
+        }
+        Integer position = positions.get(ObjectId.fromHex(commitHash));
+        if (position != null) {
+            return position;
+        }
+        LockFile lock = LockFile.acquire(file);
+        try {
+            load();
+            return addHistory(commitHash);
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Stores a commit and any of its history that is missing, for repositories with commits
+     * made before the graph existed. Returns the commit's position. Called with the lock held.
+     */
+    private int addHistory(String commitHash) throws IOException {
+        ObjectDatabase database = ObjectDatabase.open(repoPath);
+        Deque<String[]> missing = new ArrayDeque<>();
+        String current = commitHash;
+        Integer known = null;
+        while (current != null && !current.isEmpty() && (known = positions.get(ObjectId.fromHex(current))) == null) {
+            Commit commit = database.readCommit(current);
+            missing.push(new String[] {current, commit.getTree()});
+            current = commit.getParent();
+        }
+        if (missing.isEmpty()) {
+            return known;
+        }
+        append(missing, known != null ? known : NO_PARENT);
+        return count - 1;
+    }
+
+    /** Appends a chain of commits, oldest first, the first of which has the given parent. */
+    private void append(Collection<String[]> chain, int parent) throws IOException {
+        ensureCapacity(count + chain.size());
+        ByteBuffer records = ByteBuffer.allocate(chain.size() * RECORD_SIZE);
+        int position = count;
+        for (String[] commit : chain) {
+            ObjectId.fromHex(commit[0]).copyRawTo(commits, position * HASH_SIZE);
+            ObjectId.fromHex(commit[1]).copyRawTo(trees, position * HASH_SIZE);
+            parents[position] = parent;
+            generations[position] = parent == NO_PARENT ? 1 : generations[parent] + 1;
+            records.put(commits, position * HASH_SIZE, HASH_SIZE);
+            records.put(trees, position * HASH_SIZE, HASH_SIZE);
+            records.putInt(parents[position]);
+            records.putInt(generations[position]);
+            parent = position++;
+        }
+        records.flip();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (count == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC).putInt(VERSION).putInt(0).flip();
+                channel.write(header, 0);
+            }
+            channel.write(records, HEADER_SIZE + (long) count * RECORD_SIZE);
+            channel.write(ByteBuffer.allocate(4).putInt(0, position), 8);
+        }
+        for (int i = count; i < position; i++) {
+            positions.put(ObjectId.fromRaw(commits, i * HASH_SIZE), i);
+        }
+        count = position;
+        loadedLength = file.length();
+        loadedModified = file.lastModified();
+    }
+
+    /** Reads the file, unless it is unchanged since it was last read or written. */
+    private void load() throws IOException {
+        if (!file.exists()) {
+            // Removed since it was read, so it is rebuilt from the commit objects
+            count = 0;
+            positions.clear();
+            loadedLength = -1;
+            loadedModified = -1;
+            return;
+        }
+        if (file.length() == loadedLength && file.lastModified() == loadedModified) {
+            return;
+        }
+        long length = file.length();
+        long modified = file.lastModified();
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        byte[] magic = new byte[MAGIC.length];
+        if (buffer.limit() >= HEADER_SIZE) {
+            buffer.get(0, magic);
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a commit-graph file: " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported commit-graph version: " + buffer.getInt(4));
+        }
+        int stored = buffer.getInt(8);
+        if (HEADER_SIZE + (long) stored * RECORD_SIZE > buffer.limit()) {
+            throw new IOException("Commit-graph file is truncated: " + file);
+        }
+
+        count = 0;
+        positions.clear();
+        ensureCapacity(stored);
+        buffer.position(HEADER_SIZE);
+        for (int i = 0; i < stored; i++) {
+            buffer.get(commits, i * HASH_SIZE, HASH_SIZE);
+            buffer.get(trees, i * HASH_SIZE, HASH_SIZE);
+            parents[i] = buffer.getInt();
+            generations[i] = buffer.getInt();
+            positions.put(ObjectId.fromRaw(commits, i * HASH_SIZE), i);
+        }
+        count = stored;
+        loadedLength = length;
+        loadedModified = modified;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= parents.length) {
+            return;
+        }
+        int capacity = Math.max(needed, parents.length * 2);
+        commits = Arrays.copyOf(commits, capacity * HASH_SIZE);
+        trees = Arrays.copyOf(trees, capacity * HASH_SIZE);
+        parents = Arrays.copyOf(parents, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+    }
+
+    private static String hashAt(byte[] hashes, int position) {
+        return ObjectId.fromRaw(hashes, position * HASH_SIZE).name();
+    }
+}
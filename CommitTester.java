@@ -44,9 +44,9 @@ public class CommitTester {
         File headFile = new File(repoPath + "/git/HEAD");
         String latestCommitHash = new String(Files.readAllBytes(headFile.toPath())).trim();
         System.out.println("Latest commit hash: " + latestCommitHash);
-        File commitFile = new File(repoPath + "/git/objects/" + latestCommitHash);
-        if (commitFile.exists()) {
-            String commitContent = new String(Files.readAllBytes(commitFile.toPath()));
+        ObjectStore store = ObjectStore.open(repoPath);
+        if (store.contains(latestCommitHash)) {
+            String commitContent = new String(store.read(latestCommitHash));
             System.out.println("Commit content:\n" + commitContent);
         } else {
             System.out.println("Commit file not found.");
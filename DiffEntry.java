@@ -0,0 +1,75 @@
+/** One changed file between two trees. Paths are relative to the working directory. */
+public class DiffEntry {
+    public enum Type {
+        ADDED,
+        MODIFIED,
+        DELETED,
+        RENAMED  // deleted in one place and added with identical content in another
+    }
+
+    private final Type type;
+    private final String oldPath;
+    private final String newPath;
+    private final String oldHash;
+    private final String newHash;
+
+    private DiffEntry(Type type, String oldPath, String newPath, String oldHash, String newHash) {
+        this.type = type;
+        this.oldPath = oldPath;
+        this.newPath = newPath;
+        this.oldHash = oldHash;
+        this.newHash = newHash;
+    }
+
+    public static DiffEntry added(TreeEntry entry) {
+        return new DiffEntry(Type.ADDED, null, entry.getPath(), null, entry.getHash());
+    }
+
+    public static DiffEntry modified(TreeEntry oldEntry, TreeEntry newEntry) {
+        return new DiffEntry(Type.MODIFIED, oldEntry.getPath(), newEntry.getPath(), oldEntry.getHash(), newEntry.getHash());
+    }
+
+    public static DiffEntry deleted(TreeEntry entry) {
+        return new DiffEntry(Type.DELETED, entry.getPath(), null, entry.getHash(), null);
+    }
+
+    public static DiffEntry renamed(TreeEntry oldEntry, TreeEntry newEntry) {
+        return new DiffEntry(Type.RENAMED, oldEntry.getPath(), newEntry.getPath(), oldEntry.getHash(), newEntry.getHash());
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** Path before the change, null for an added file. */
+    public String getOldPath() {
+        return oldPath;
+    }
+
+    /** Path after the change, null for a deleted file. */
+    public String getNewPath() {
+        return newPath;
+    }
+
+    public String getOldHash() {
+        return oldHash;
+    }
+
+    public String getNewHash() {
+        return newHash;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case ADDED:
+                return "A " + newPath;
+            case DELETED:
+                return "D " + oldPath;
+            case RENAMED:
+                return "R " + oldPath + " -> " + newPath;
+            default:
+                return "M " + newPath;
+        }
+    }
+}
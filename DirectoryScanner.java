@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Lists working tree directories for snapshots and status. Every child is stat'ed exactly
+ * once, and that one call gives both its type and, for files, the stat data the index
+ * records, so nothing downstream has to look at the file system again to decide whether a
+ * file changed. Child paths are built from the parent's path instead of being relativized
+ * against the working directory one by one.
+ */
+public class DirectoryScanner {
+    /** A file or directory in a listing. */
+    public static class Entry {
+        final String name;
+        final String path;  // relative to the working directory
+        final Path file;
+        final boolean directory;
+        final FileStat stat;  // null for directories
+
+        Entry(String name, String path, Path file, boolean directory, FileStat stat) {
+            this.name = name;
+            this.path = path;
+            this.file = file;
+            this.directory = directory;
+            this.stat = stat;
+        }
+    }
+
+    private DirectoryScanner() {
+    }
+
+    /**
+     * The files and directories in a directory, sorted by name, leaving out ignored ones and
+     * anything that is neither (sockets, broken links). A directory that can't be listed
+     * is reported as empty, and children that vanish while it is listed are left out.
+     */
+    public static List<Entry> list(Path directory, String dirPath, IgnoreRules ignore) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        RepositoryListener listener = Instrumentation.listener();
+        long start = System.nanoTime();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path child : stream) {
+                String name = child.getFileName().toString();
+                String path = dirPath.isEmpty() ? name : dirPath + "/" + name;
+                BasicFileAttributes attrs;
+                try {
+                    attrs = FileStat.readAttributes(child);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (!attrs.isDirectory() && !attrs.isRegularFile()) {
+                    continue;
+                }
+                if (ignore.isIgnored(path, attrs.isDirectory())) {
+                    continue;
+                }
+                FileStat stat = attrs.isDirectory() ? null : FileStat.of(child, attrs);
+                entries.add(new Entry(name, path, child, attrs.isDirectory(), stat));
+            }
+        } catch (NoSuchFileException | NotDirectoryException | AccessDeniedException e) {
+            return Collections.emptyList();
+        } finally {
+            listener.phase(RepositoryListener.Phase.SCAN, System.nanoTime() - start);
+        }
+        // Same order as before trees were built from this listing, so tree hashes don't change
+        entries.sort(Comparator.comparing(entry -> entry.name));
+        return entries;
+    }
+}
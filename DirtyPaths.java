@@ -0,0 +1,60 @@
+import java.util.*;
+
+/**
+ * Paths in the working tree that may have changed since the last snapshot, relative to the
+ * working directory. A dirty directory stands for everything below it. A full scan treats
+ * every path as dirty.
+ */
+public class DirtyPaths {
+    public static final DirtyPaths ALL = new DirtyPaths(Collections.emptySet(), true);
+
+    private final Set<String> paths;
+    private final Set<String> ancestors = new HashSet<>();
+    private final boolean fullScan;
+
+    public DirtyPaths(Set<String> paths, boolean fullScan) {
+        this.paths = paths;
+        this.fullScan = fullScan;
+        for (String path : paths) {
+            String parent = path;
+            while (!parent.isEmpty()) {
+                int slash = parent.lastIndexOf('/');
+                parent = slash < 0 ? "" : parent.substring(0, slash);
+                if (!ancestors.add(parent)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public boolean isFullScan() {
+        return fullScan;
+    }
+
+    public Set<String> getPaths() {
+        return paths;
+    }
+
+    /** True if the path itself, or a directory above it, is dirty. */
+    public boolean isDirty(String path) {
+        if (fullScan) {
+            return true;
+        }
+        String current = path;
+        while (true) {
+            if (paths.contains(current)) {
+                return true;
+            }
+            if (current.isEmpty()) {
+                return false;
+            }
+            int slash = current.lastIndexOf('/');
+            current = slash < 0 ? "" : current.substring(0, slash);
+        }
+    }
+
+    /** True if a directory has to be listed, because it or something below it is dirty. */
+    public boolean needsVisit(String dirPath) {
+        return ancestors.contains(dirPath) || isDirty(dirPath);
+    }
+}
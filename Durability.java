@@ -0,0 +1,47 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * How hard writes try to survive a crash or power loss.
+ *
+ * NONE never syncs, so after a crash HEAD or the index may name objects that never reached
+ * the disk. BATCHED writes objects without syncing and issues one barrier that syncs all of
+ * them, and the directories they were renamed into, before the index or HEAD is replaced;
+ * the index, HEAD and packs are synced as they are written. STRICT syncs every object as
+ * it is written as well.
+ *
+ * The mode applies to the whole process.
+ */
+public enum Durability {
+    NONE, BATCHED, STRICT;
+
+    private static volatile Durability mode = BATCHED;
+
+    public static Durability mode() {
+        return mode;
+    }
+
+    public static void setMode(Durability newMode) {
+        mode = newMode != null ? newMode : BATCHED;
+    }
+
+    /** Flushes a file's content to the device. */
+    static void syncFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Flushes a directory so that renames into it are durable. Platforms that can't open a
+     * directory for syncing (Windows) are skipped, since their renames don't need it.
+     */
+    static void syncDirectory(File dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // Directories can't be opened for syncing here
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class FileStat {
+    private static final int REGULAR_FILE = 0100000;
+
+    final long size;
+    final long mtimeNanos;
+    final String fileKey;  // inode/device as reported by the platform, "-" if unavailable
+    final int mode;
+
+    public FileStat(long size, long mtimeNanos, String fileKey, int mode) {
+        this.size = size;
+        this.mtimeNanos = mtimeNanos;
+        this.fileKey = fileKey;
+        this.mode = mode;
+    }
+
+    public static FileStat of(Path path) throws IOException {
+        return of(path, readAttributes(path));
+    }
+
+    /**
+     * Reads everything a stat needs in one call: POSIX attributes where the file system has
+     * them, basic attributes otherwise.
+     */
+    public static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, PosixFileAttributes.class);
+        } catch (UnsupportedOperationException e) {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        }
+    }
+
+    /** The stat of a file from attributes already read by {@link #readAttributes}. */
+    public static FileStat of(Path path, BasicFileAttributes attrs) {
+        int mode;
+        if (attrs instanceof PosixFileAttributes) {
+            mode = REGULAR_FILE | toModeBits(((PosixFileAttributes) attrs).permissions());
+        } else {
+            mode = REGULAR_FILE | (Files.isExecutable(path) ? 0755 : 0644);
+        }
+        return of(attrs, mode);
+    }
+
+    public static FileStat of(BasicFileAttributes attrs, int mode) {
+        Object key = attrs.fileKey();
+        String fileKey = key == null ? "-" : key.toString().replace(' ', '_');
+        return new FileStat(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), fileKey, mode);
+    }
+
+    private static int toModeBits(Set<PosixFilePermission> permissions) {
+        int bits = 0;
+        for (PosixFilePermission permission : permissions) {
+            // PosixFilePermission is declared from OWNER_READ (0400) down to OTHERS_EXECUTE (01)
+            bits |= 1 << (8 - permission.ordinal());
+        }
+        return bits;
+    }
+
+    public boolean matches(FileStat other) {
+        return other != null
+            && size == other.size
+            && mtimeNanos == other.mtimeNanos
+            && mode == other.mode
+            && fileKey.equals(other.fileKey);
+    }
+
+    /**
+     * A file modified in the same timestamp tick as the index write cannot be told apart
+     * from its recorded stat, so it has to be re-hashed until a later index write.
+     */
+    public boolean isRacy(long indexTimestampNanos) {
+        return mtimeNanos >= indexTimestampNanos;
+    }
+
+    public static FileStat parse(String size, String mtimeNanos, String fileKey, String mode) {
+        return new FileStat(Long.parseLong(size), Long.parseLong(mtimeNanos), fileKey, Integer.parseInt(mode, 8));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d %d %s %o", size, mtimeNanos, fileKey, mode);
+    }
+}
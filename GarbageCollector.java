@@ -0,0 +1,248 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Deletes loose objects that nothing refers to.
+ *
+ * Marking starts from HEAD, every commit in the commit-graph and every entry of the index,
+ * and follows commits to their trees and trees to their subtrees and blobs in parallel.
+ * Commits in the commit-graph are kept even when HEAD has been checked out to an older
+ * commit, since there are no branches to find them by otherwise.
+ *
+ * Only unmarked loose objects older than the grace period are swept, so objects written by
+ * a stage or commit running at the same time are never removed. That includes objects such a
+ * stage or commit finds already stored and reuses, since the store refreshes their
+ * modification time instead of skipping them silently. Packed objects are left alone.
+ * Leftover temp files from interrupted writes, in the objects directory, its fan-out
+ * directories and the pack directory, are swept with the same grace period.
+ * Chunks are kept as long as a reachable manifest lists them.
+ */
+public class GarbageCollector {
+    public static final long DEFAULT_GRACE_MILLIS = 14L * 24 * 60 * 60 * 1000;
+
+    private final String repoPath;
+    private final ObjectStore store;
+    // Uncached reads, so a collection doesn't evict everything else from the shared cache
+    private final ObjectDatabase database;
+    // Guarded by itself, marking tasks add to it from several threads
+    private final ObjectIdSet reachable = new ObjectIdSet();
+
+    /** What a collection found, or would remove in a dry run. */
+    public static class Report {
+        private final boolean dryRun;
+        private final int reachable;
+        private final int unreachable;
+        private final int removed;
+        private final long reclaimableBytes;
+
+        Report(boolean dryRun, int reachable, int unreachable, int removed, long reclaimableBytes) {
+            this.dryRun = dryRun;
+            this.reachable = reachable;
+            this.unreachable = unreachable;
+            this.removed = removed;
+            this.reclaimableBytes = reclaimableBytes;
+        }
+
+        public boolean isDryRun() {
+            return dryRun;
+        }
+
+        public int getReachable() {
+            return reachable;
+        }
+
+        /** Unreferenced loose objects, including those still inside the grace period. */
+        public int getUnreachable() {
+            return unreachable;
+        }
+
+        /** Objects and temp files past the grace period, deleted unless this was a dry run. */
+        public int getRemoved() {
+            return removed;
+        }
+
+        public long getReclaimableBytes() {
+            return reclaimableBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d reachable, %d unreachable objects; %s %d files (%d bytes)",
+                reachable, unreachable, dryRun ? "would remove" : "removed", removed, reclaimableBytes);
+        }
+    }
+
+    public GarbageCollector(String repoPath) {
+        this.repoPath = repoPath;
+        this.store = ObjectStore.open(repoPath);
+        this.database = new ObjectDatabase(store, 0);
+    }
+
+    public static Report collect(String repoPath, long graceMillis, boolean dryRun) throws IOException {
+        return new GarbageCollector(repoPath).run(graceMillis, dryRun);
+    }
+
+    public Report run(long graceMillis, boolean dryRun) throws IOException {
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        mark();
+        List<String> loose = store.listLooseObjects();
+        markChunks(loose, cutoff);
+
+        int unreachable = 0;
+        int removed = 0;
+        int objectsRemoved = 0;
+        long reclaimable = 0;
+        for (String hash : loose) {
+            if (isReachable(hash)) {
+                continue;
+            }
+            unreachable++;
+            File file = store.locate(hash);
+            if (file != null && file.lastModified() < cutoff) {
+                reclaimable += file.length();
+                removed++;
+                if (!dryRun && file.delete()) {
+                    store.forget(hash);
+                    objectsRemoved++;
+                }
+            }
+        }
+        if (objectsRemoved > 0) {
+            store.markCollected();
+        }
+        for (File tempFile : tempFiles()) {
+            if (tempFile.lastModified() < cutoff) {
+                reclaimable += tempFile.length();
+                removed++;
+                if (!dryRun) {
+                    tempFile.delete();
+                }
+            }
+        }
+        return new Report(dryRun, reachable.size(), unreachable, removed, reclaimable);
+    }
+
+    /** Temp files directly in the objects directory or in any directory under it. */
+    private List<File> tempFiles() {
+        List<File> tempFiles = new ArrayList<>();
+        File objectsDir = store.getObjectsDir();
+        addTempFiles(objectsDir, tempFiles);
+        File[] dirs = objectsDir.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                addTempFiles(dir, tempFiles);
+            }
+        }
+        return tempFiles;
+    }
+
+    private static void addTempFiles(File dir, List<File> tempFiles) {
+        File[] found = dir.listFiles((parent, name) -> name.endsWith(".tmp"));
+        if (found != null) {
+            tempFiles.addAll(Arrays.asList(found));
+        }
+    }
+
+    private boolean markReachable(String hash) {
+        return markReachable(ObjectId.fromHex(hash));
+    }
+
+    /** Returns true if the object wasn't marked yet. */
+    private boolean markReachable(ObjectId id) {
+        synchronized (reachable) {
+            return reachable.add(id);
+        }
+    }
+
+    private boolean isReachable(String hash) {
+        synchronized (reachable) {
+            return reachable.contains(ObjectId.fromHex(hash));
+        }
+    }
+
+    /**
+     * Manifests are always loose, so the chunks of every reachable one are found among these.
+     * Manifests inside the grace period keep their chunks too, since a new manifest may reuse
+     * chunks that nothing reachable lists.
+     */
+    private void markChunks(List<String> loose, long cutoff) throws IOException {
+        for (String hash : loose) {
+            File file = store.locate(hash);
+            boolean young = file != null && file.lastModified() >= cutoff;
+            if ((isReachable(hash) || young) && store.isChunked(hash)) {
+                for (String chunk : store.chunksOf(hash)) {
+                    markReachable(chunk);
+                }
+            }
+        }
+    }
+
+    private void mark() throws IOException {
+        List<String> trees = new ArrayList<>();
+        String head = new Blob().getCurrentCommitHash(repoPath);
+        CommitGraph graph = CommitGraph.open(repoPath);
+        if (head != null) {
+            // Also stores HEAD's history in the graph if any of it is missing
+            graph.count(head);
+        }
+        for (String commit : graph.commits()) {
+            markReachable(commit);
+            trees.add(graph.getTree(commit));
+        }
+        for (Blob.IndexEntry entry : IndexSession.open(repoPath).entries()) {
+            if (entry.type.equals("tree")) {
+                trees.add(entry.id.name());
+            } else {
+                markReachable(entry.id);
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<MarkTask> tasks = new ArrayList<>();
+            for (String tree : trees) {
+                if (markReachable(tree)) {
+                    tasks.add(new MarkTask(tree));
+                }
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            // Something referenced can't be read, so nothing is safe to delete
+            throw new IOException("Unable to mark reachable objects, nothing was removed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Marks everything below one tree; subtrees not seen before are marked as their own tasks. */
+    @SuppressWarnings("serial")
+    private class MarkTask extends RecursiveAction {
+        private final String treeHash;
+
+        MarkTask(String treeHash) {
+            this.treeHash = treeHash;
+        }
+
+        @Override
+        protected void compute() {
+            List<MarkTask> subtrees = new ArrayList<>();
+            try {
+                for (TreeEntry entry : database.readTree(treeHash)) {
+                    if (markReachable(entry.getHash()) && entry.isTree()) {
+                        subtrees.add(new MarkTask(entry.getHash()));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(subtrees);
+        }
+    }
+}
@@ -3,8 +3,63 @@ public class Git {
     public static void main (String [] args) {
         String repoPath = "/Users/User/Desktop/HTCS_Projects/GIT-PROJECT-TYLER";
         Git git = new Git();
-        git.initRepo(repoPath);
+        if (args.length == 0) {
+            git.initRepo(repoPath);
+            return;
+        }
 
+        String command = args[0];
+        if (args.length > 1) {
+            repoPath = args[1];
+        }
+        try {
+            switch (command) {
+                case "init":
+                    git.initRepo(repoPath);
+                    break;
+                case "migrate-objects":
+                    int moved = ObjectStore.open(repoPath).migrateToFanOut();
+                    System.out.println("Moved " + moved + " objects into the fan-out layout");
+                    break;
+                case "convert-index":
+                    if (IndexFile.convertTextIndex(repoPath)) {
+                        System.out.println("Rewrote the index in the binary format");
+                    } else {
+                        System.out.println("Index is already binary");
+                    }
+                    break;
+                case "repack":
+                    int packed = ObjectStore.open(repoPath).repack();
+                    System.out.println("Packed " + packed + " loose objects");
+                    break;
+                case "log":
+                    String head = new Blob().getCurrentCommitHash(repoPath);
+                    if (head != null) {
+                        for (String commit : CommitGraph.open(repoPath).log(head, Integer.MAX_VALUE)) {
+                            System.out.println(commit);
+                        }
+                    }
+                    break;
+                case "gc":
+                    boolean dryRun = false;
+                    long graceMillis = GarbageCollector.DEFAULT_GRACE_MILLIS;
+                    for (int i = 2; i < args.length; i++) {
+                        if (args[i].equals("--dry-run")) {
+                            dryRun = true;
+                        } else if (args[i].equals("--grace-hours") && i + 1 < args.length) {
+                            graceMillis = Long.parseLong(args[++i]) * 60 * 60 * 1000;
+                        }
+                    }
+                    System.out.println(GarbageCollector.collect(repoPath, graceMillis, dryRun));
+                    break;
+                default:
+                    System.err.println("Unknown command: " + command);
+                    System.err.println("Usage: java Git [init|migrate-objects|convert-index|repack|log] <repoPath>");
+                    System.err.println("       java Git gc <repoPath> [--dry-run] [--grace-hours N]");
+            }
+        } catch (IOException e) {
+            System.err.println("Error running " + command + ": " + e.getMessage());
+        }
     }
 
     public void initRepo(String path) {
@@ -21,6 +76,8 @@ public class Git {
             }
         }
     
+        // Whatever this process knew about a repository that was here before is gone
+        ObjectStore.close(path);
         git.mkdirs();
         File objectsDir = new File(git, "objects");
         objectsDir.mkdirs(); 
@@ -1,7 +1,26 @@
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
 public interface GitInterface {
     void stage(String filePath);
 
+    List<StageResult> stageAll(Collection<Path> filePaths);
+
+    List<StageResult> stageDirectory(Path directory);
+
     String commit(String author, String message);
 
+    void checkout(String commitHash);
+
+    List<String> log(int maxCount);
+
+    boolean isAncestor(String ancestor, String descendant);
+
+    Iterator<DiffEntry> diff(String commitA, String commitB);
+
+    Iterator<DiffEntry> status();
+
     //not doing the extra credit
 }
\ No newline at end of file
@@ -1,6 +1,12 @@
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 public class GitInterfaceImpl implements GitInterface {
     private final String repoPath;
@@ -34,11 +40,37 @@ public class GitInterfaceImpl implements GitInterface {
         }
     }
 
+    @Override
+    public List<StageResult> stageAll(Collection<Path> filePaths) {
+        try {
+            return blob.stageAll(filePaths, repoPath);
+        } catch (IOException e) {
+            return failAll(filePaths, e);
+        }
+    }
+
+    @Override
+    public List<StageResult> stageDirectory(Path directory) {
+        try {
+            return blob.stageDirectory(directory, repoPath);
+        } catch (IOException e) {
+            return failAll(List.of(directory), e);
+        }
+    }
+
+    private static List<StageResult> failAll(Collection<Path> paths, IOException e) {
+        List<StageResult> results = new ArrayList<>();
+        for (Path path : paths) {
+            results.add(StageResult.failed(path, e.getMessage()));
+        }
+        return results;
+    }
+
     @Override
     public String commit(String author, String message) {
         try {
-            commitHandler.createCommit(author, message, repoPath);
-            String commitHash = blob.getCurrentCommitHash(repoPath);
+            // Not read back from HEAD, which a concurrent commit may already have moved
+            String commitHash = commitHandler.createCommit(author, message, repoPath);
             System.out.println("Committed with hash: " + commitHash);
             return commitHash;
         } catch (IOException | NoSuchAlgorithmException e) {
@@ -47,5 +79,63 @@ public class GitInterfaceImpl implements GitInterface {
         }
     }
 
-    
+    @Override
+    public void checkout(String commitHash) {
+        try {
+            Checkout.checkout(commitHash, repoPath);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println("Error checking out commit: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<String> log(int maxCount) {
+        try {
+            String head = blob.getCurrentCommitHash(repoPath);
+            if (head == null) {
+                return new ArrayList<>();
+            }
+            return CommitGraph.open(repoPath).log(head, maxCount);
+        } catch (IOException e) {
+            System.out.println("Error reading history: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    @Override
+    public boolean isAncestor(String ancestor, String descendant) {
+        try {
+            return CommitGraph.open(repoPath).isAncestor(ancestor, descendant);
+        } catch (IOException e) {
+            System.out.println("Error reading history: " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public Iterator<DiffEntry> diff(String commitA, String commitB) {
+        try {
+            CommitGraph graph = CommitGraph.open(repoPath);
+            ObjectDatabase database = ObjectDatabase.open(repoPath);
+            return new TreeDiff(database::readTree, graph.getTree(commitA), database::readTree, graph.getTree(commitB));
+        } catch (IOException e) {
+            System.out.println("Error comparing commits: " + e.getMessage());
+            return Collections.emptyIterator();
+        }
+    }
+
+    @Override
+    public Iterator<DiffEntry> status() {
+        try {
+            String head = blob.getCurrentCommitHash(repoPath);
+            String headTree = head != null ? CommitGraph.open(repoPath).getTree(head) : null;
+            WorkingTreeWatcher watcher = WorkingTreeWatcher.forRepo(repoPath);
+            WorkingTree workingTree = WorkingTree.scan(repoPath, watcher != null ? watcher.peek() : DirtyPaths.ALL);
+            ObjectDatabase database = ObjectDatabase.open(repoPath);
+            return new TreeDiff(database::readTree, headTree, workingTree, workingTree.getRootHash());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println("Error reading status: " + e.getMessage());
+            return Collections.emptyIterator();
+        }
+    }
 }
\ No newline at end of file
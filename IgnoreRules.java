@@ -0,0 +1,262 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Paths a snapshot leaves out, read from .gitignore files in the working directory and any
+ * directory below it. Patterns follow .gitignore rules: '#' comments, '!' to re-include,
+ * a trailing '/' for directories only, a '/' anywhere else to anchor the pattern to the
+ * directory of its file, and '*', '?', '[...]' and '**' globs. The last matching pattern
+ * wins, and patterns in deeper files come after those of the directories above them.
+ *
+ * An instance holds the rules that apply inside one directory. Walks start from
+ * {@link #load(String)} and call {@link #forDirectory} on the way down; an ignored directory
+ * is never listed, so nothing below it can be re-included. The repository's own git
+ * directory is always ignored.
+ */
+public class IgnoreRules {
+    public static final String FILE_NAME = ".gitignore";
+    private static final String REPOSITORY_DIR = "git";
+
+    private final File workingDir;
+    private final IgnoreRules parent;
+    private final String basePath;
+    private final Rule[] rules;
+    // Rules of every directory loaded so far, shared by the whole walk
+    private final Map<String, IgnoreRules> loaded;
+
+    private IgnoreRules(File workingDir, IgnoreRules parent, String basePath, Rule[] rules, Map<String, IgnoreRules> loaded) {
+        this.workingDir = workingDir;
+        this.parent = parent;
+        this.basePath = basePath;
+        this.rules = rules;
+        this.loaded = loaded;
+    }
+
+    /** The rules at the top of the working directory. */
+    public static IgnoreRules load(String workingDir) throws IOException {
+        File root = new File(workingDir);
+        Map<String, IgnoreRules> loaded = new ConcurrentHashMap<>();
+        IgnoreRules rules = new IgnoreRules(root, null, "", read(new File(root, FILE_NAME)), loaded);
+        loaded.put("", rules);
+        return rules;
+    }
+
+    /**
+     * The rules inside a subdirectory of this one, adding its own ignore file if it has one.
+     * dirPath is relative to the working directory.
+     */
+    public IgnoreRules forDirectory(String dirPath) throws IOException {
+        IgnoreRules rules = loaded.get(dirPath);
+        if (rules == null) {
+            Rule[] own = read(new File(new File(workingDir, dirPath), FILE_NAME));
+            rules = own.length == 0 ? this : new IgnoreRules(workingDir, this, dirPath, own, loaded);
+            IgnoreRules raced = loaded.putIfAbsent(dirPath, rules);
+            if (raced != null) {
+                rules = raced;
+            }
+        }
+        return rules;
+    }
+
+    /** The rules inside any directory below the working directory, called on those from {@link #load}. */
+    public IgnoreRules forPath(String dirPath) throws IOException {
+        IgnoreRules rules = this;
+        if (dirPath.isEmpty()) {
+            return rules;
+        }
+        int slash = dirPath.indexOf('/');
+        while (slash >= 0) {
+            rules = rules.forDirectory(dirPath.substring(0, slash));
+            slash = dirPath.indexOf('/', slash + 1);
+        }
+        return rules.forDirectory(dirPath);
+    }
+
+    /**
+     * True if a direct child of this directory is ignored. The path is relative to the
+     * working directory.
+     */
+    public boolean isIgnored(String path, boolean directory) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (name.equals(REPOSITORY_DIR)) {
+            return true;
+        }
+        for (IgnoreRules level = this; level != null; level = level.parent) {
+            String relative = level.basePath.isEmpty() ? path : path.substring(level.basePath.length() + 1);
+            for (int i = level.rules.length - 1; i >= 0; i--) {
+                Rule rule = level.rules[i];
+                if (rule.matches(relative, name, directory)) {
+                    return !rule.negated;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if a path anywhere in the working tree is ignored, either itself or because a
+     * directory above it is. Only meaningful on the rules returned by {@link #load}.
+     */
+    public boolean isExcluded(String path, boolean directory) throws IOException {
+        IgnoreRules rules = this;
+        int slash = path.indexOf('/');
+        while (slash >= 0) {
+            String dirPath = path.substring(0, slash);
+            if (rules.isIgnored(dirPath, true)) {
+                return true;
+            }
+            rules = rules.forDirectory(dirPath);
+            slash = path.indexOf('/', slash + 1);
+        }
+        return rules.isIgnored(path, directory);
+    }
+
+    private static Rule[] read(File file) throws IOException {
+        if (!file.isFile()) {
+            return new Rule[0];
+        }
+        List<Rule> rules = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            Rule rule = Rule.parse(line);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+        return rules.toArray(new Rule[0]);
+    }
+
+    /** One pattern line, compiled to the cheapest test that can match it. */
+    static class Rule {
+        private enum Kind { NAME, SUFFIX, NAME_GLOB, PATH_GLOB }
+
+        final boolean negated;
+        final boolean directoryOnly;
+        private final Kind kind;
+        private final String literal;
+        private final Pattern glob;
+
+        private Rule(boolean negated, boolean directoryOnly, Kind kind, String literal, Pattern glob) {
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.kind = kind;
+            this.literal = literal;
+            this.glob = glob;
+        }
+
+        /** Compiles a line of an ignore file, or returns null for blank lines and comments. */
+        static Rule parse(String line) {
+            String pattern = trimTrailingSpaces(line);
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                return null;
+            }
+            boolean negated = pattern.startsWith("!");
+            if (negated) {
+                pattern = pattern.substring(1);
+            } else if (pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+                pattern = pattern.substring(1);
+            }
+            boolean directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            if (pattern.isEmpty()) {
+                return null;
+            }
+            // A slash anywhere but the end anchors the pattern to the directory of the ignore file
+            if (pattern.indexOf('/') >= 0) {
+                String anchored = pattern.startsWith("/") ? pattern.substring(1) : pattern;
+                return new Rule(negated, directoryOnly, Kind.PATH_GLOB, null, Pattern.compile(toRegex(anchored)));
+            }
+            if (!hasGlob(pattern, 0)) {
+                return new Rule(negated, directoryOnly, Kind.NAME, unescape(pattern), null);
+            }
+            if (pattern.charAt(0) == '*' && !hasGlob(pattern, 1)) {
+                return new Rule(negated, directoryOnly, Kind.SUFFIX, unescape(pattern.substring(1)), null);
+            }
+            return new Rule(negated, directoryOnly, Kind.NAME_GLOB, null, Pattern.compile(toRegex(pattern)));
+        }
+
+        boolean matches(String relativePath, String name, boolean directory) {
+            if (directoryOnly && !directory) {
+                return false;
+            }
+            switch (kind) {
+                case NAME:
+                    return name.equals(literal);
+                case SUFFIX:
+                    return name.endsWith(literal);
+                case NAME_GLOB:
+                    return glob.matcher(name).matches();
+                default:
+                    return glob.matcher(relativePath).matches();
+            }
+        }
+
+        private static String trimTrailingSpaces(String line) {
+            int end = line.length();
+            while (end > 0 && line.charAt(end - 1) == ' ' && !(end > 1 && line.charAt(end - 2) == '\\')) {
+                end--;
+            }
+            return line.substring(0, end);
+        }
+
+        private static boolean hasGlob(String pattern, int from) {
+            for (int i = from; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '*' || c == '?' || c == '[') {
+                    return true;
+                }
+                if (c == '\\') {
+                    i++;
+                }
+            }
+            return false;
+        }
+
+        private static String unescape(String pattern) {
+            return pattern.indexOf('\\') < 0 ? pattern : pattern.replaceAll("\\\\(.)", "$1");
+        }
+
+        static String toRegex(String pattern) {
+            StringBuilder regex = new StringBuilder();
+            int length = pattern.length();
+            for (int i = 0; i < length; i++) {
+                char c = pattern.charAt(i);
+                if (c == '*' && i + 1 < length && pattern.charAt(i + 1) == '*'
+                        && (i == 0 || pattern.charAt(i - 1) == '/')) {
+                    if (i + 2 < length && pattern.charAt(i + 2) == '/') {
+                        // "**/" matches any number of leading directories, including none
+                        regex.append("(?:.*/)?");
+                        i += 2;
+                    } else {
+                        regex.append(".*");
+                        i++;
+                    }
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '[' && pattern.indexOf(']', i + 2) > 0) {
+                    int close = pattern.indexOf(']', i + 2);
+                    String set = pattern.substring(i + 1, close);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = close;
+                } else if (c == '\\' && i + 1 < length) {
+                    regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                } else if (Character.isLetterOrDigit(c) || c == '/' || c == '_' || c == '-') {
+                    regex.append(c);
+                } else {
+                    regex.append('\\').append(c);
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
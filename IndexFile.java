@@ -0,0 +1,281 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Binary on-disk format of git/index.
+ *
+ * <pre>
+ * header   "GIDX", version (int), entry count (int), restart interval (int), restart count (int)
+ * entry    flags (byte), hash (20 raw bytes), [size (long), mtime (long), mode (int),
+ *          file key length (short), file key], shared path prefix (varint),
+ *          suffix length (varint), suffix (UTF-8)
+ * restarts offset of every restart-interval'th entry (int each), whose path is stored in full
+ * trailer  SHA-1 of everything before it
+ * </pre>
+ *
+ * Entries are sorted by path, so a single path is found by binary searching the restart
+ * points and decoding at most one restart interval of entries.
+ */
+public class IndexFile {
+    private static final byte[] MAGIC = {'G', 'I', 'D', 'X'};
+    // Version 2: hashes are of uncompressed content; version 1 hashed the gzip-compressed bytes
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int HASH_SIZE = 20;
+    private static final int RESTART_INTERVAL = 16;
+
+    private static final int FLAG_DELETED = 1;
+    private static final int FLAG_TREE = 1 << 1;
+    private static final int FLAG_STAT = 1 << 2;
+
+    public static boolean isBinary(File indexFile) throws IOException {
+        if (!indexFile.exists() || indexFile.length() < MAGIC.length) {
+            return false;
+        }
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream in = new FileInputStream(indexFile)) {
+            return in.read(magic) == MAGIC.length && Arrays.equals(magic, MAGIC);
+        }
+    }
+
+    /** Format version of a binary index file, 0 for the old text format. */
+    public static int version(File indexFile) throws IOException {
+        if (!isBinary(indexFile)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+            in.skipBytes(MAGIC.length);
+            return in.readInt();
+        }
+    }
+
+    /** Writes entries, which must already be sorted by path, to the given file. */
+    public static void write(Collection<Blob.IndexEntry> entries, File file) throws IOException {
+        MessageDigest digest = ObjectId.newDigest();
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(fileOut), digest));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            out.writeInt(RESTART_INTERVAL);
+            out.writeInt((entries.size() + RESTART_INTERVAL - 1) / RESTART_INTERVAL);
+
+            List<Integer> restarts = new ArrayList<>();
+            byte[] previousPath = new byte[0];
+            byte[] rawId = new byte[ObjectId.RAW_LENGTH];
+            int count = 0;
+            for (Blob.IndexEntry entry : entries) {
+                byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+                int shared = 0;
+                if (count % RESTART_INTERVAL == 0) {
+                    restarts.add(out.size());
+                } else {
+                    shared = sharedPrefix(previousPath, path);
+                }
+
+                int flags = (entry.deleted ? FLAG_DELETED : 0)
+                    | (entry.type.equals("tree") ? FLAG_TREE : 0)
+                    | (entry.stat != null ? FLAG_STAT : 0);
+                out.writeByte(flags);
+                entry.id.copyRawTo(rawId, 0);
+                out.write(rawId);
+                if (entry.stat != null) {
+                    out.writeLong(entry.stat.size);
+                    out.writeLong(entry.stat.mtimeNanos);
+                    out.writeInt(entry.stat.mode);
+                    byte[] fileKey = entry.stat.fileKey.getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(fileKey.length);
+                    out.write(fileKey);
+                }
+                writeVarInt(out, shared);
+                writeVarInt(out, path.length - shared);
+                out.write(path, shared, path.length - shared);
+
+                previousPath = path;
+                count++;
+            }
+            for (int offset : restarts) {
+                out.writeInt(offset);
+            }
+            out.flush();
+            // The checksum itself is written past the digest stream
+            fileOut.write(digest.digest());
+        }
+    }
+
+    /** Decodes every entry, verifying the trailing checksum first. */
+    public static List<Blob.IndexEntry> readAll(File file) throws IOException {
+        ByteBuffer buffer = map(file);
+        verifyChecksum(buffer);
+        int entryCount = readHeader(buffer);
+        List<Blob.IndexEntry> entries = new ArrayList<>(entryCount);
+        buffer.position(HEADER_SIZE);
+        byte[] path = new byte[0];
+        for (int i = 0; i < entryCount; i++) {
+            Blob.IndexEntry entry = readEntry(buffer, path);
+            path = entry.path.getBytes(StandardCharsets.UTF_8);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /** Looks up one path without decoding the rest of the index. Returns null if absent. */
+    public static Blob.IndexEntry find(File file, String path) throws IOException {
+        if (!isBinary(file)) {
+            return null;
+        }
+        ByteBuffer buffer = map(file);
+        int entryCount = readHeader(buffer);
+        int restartCount = buffer.getInt(16);
+        int restartTable = buffer.limit() - HASH_SIZE - restartCount * 4;
+
+        // Find the last restart point whose (fully stored) path sorts at or before the target
+        int low = 0;
+        int high = restartCount - 1;
+        int start = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            buffer.position(buffer.getInt(restartTable + mid * 4));
+            String restartPath = readEntry(buffer, new byte[0]).path;
+            if (restartPath.compareTo(path) <= 0) {
+                start = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (start < 0) {
+            return null;
+        }
+
+        buffer.position(buffer.getInt(restartTable + start * 4));
+        int remaining = Math.min(RESTART_INTERVAL, entryCount - start * RESTART_INTERVAL);
+        byte[] previousPath = new byte[0];
+        for (int i = 0; i < remaining; i++) {
+            Blob.IndexEntry entry = readEntry(buffer, previousPath);
+            int order = entry.path.compareTo(path);
+            if (order == 0) {
+                return entry;
+            } else if (order > 0) {
+                break;
+            }
+            previousPath = entry.path.getBytes(StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * Rewrites a text-format index in the binary format, for the convert-index command. Any
+     * flush does the same, so this only matters for repos that are read but not staged into.
+     * Returns false if it already was binary.
+     */
+    public static boolean convertTextIndex(String repoPath) throws IOException {
+        File indexFile = new File(repoPath, "git/index");
+        if (!indexFile.exists() || isBinary(indexFile)) {
+            return false;
+        }
+        IndexSession index = IndexSession.open(repoPath);
+        index.markDirty();
+        index.flush();
+        return true;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_SIZE + HASH_SIZE) {
+                throw new IOException("Index file is truncated: " + file);
+            }
+            return buffer;
+        }
+    }
+
+    private static int readHeader(ByteBuffer buffer) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a binary index file");
+        }
+        int version = buffer.getInt(4);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported index version: " + version);
+        }
+        if (buffer.getInt(12) != RESTART_INTERVAL) {
+            throw new IOException("Unsupported index restart interval: " + buffer.getInt(12));
+        }
+        return buffer.getInt(8);
+    }
+
+    private static void verifyChecksum(ByteBuffer buffer) throws IOException {
+        int contentLength = buffer.limit() - HASH_SIZE;
+        MessageDigest digest = ObjectId.newDigest();
+        ByteBuffer content = buffer.duplicate();
+        content.position(0).limit(contentLength);
+        digest.update(content);
+        byte[] expected = new byte[HASH_SIZE];
+        buffer.get(contentLength, expected);
+        if (!Arrays.equals(digest.digest(), expected)) {
+            throw new IOException("Index checksum mismatch, the index file is corrupt");
+        }
+    }
+
+    private static Blob.IndexEntry readEntry(ByteBuffer buffer, byte[] previousPath) {
+        int flags = buffer.get();
+        ObjectId id = ObjectId.fromRaw(buffer);
+        FileStat stat = null;
+        if ((flags & FLAG_STAT) != 0) {
+            long size = buffer.getLong();
+            long mtimeNanos = buffer.getLong();
+            int mode = buffer.getInt();
+            byte[] fileKey = new byte[buffer.getShort()];
+            buffer.get(fileKey);
+            stat = new FileStat(size, mtimeNanos, new String(fileKey, StandardCharsets.UTF_8), mode);
+        }
+        int shared = readVarInt(buffer);
+        int suffixLength = readVarInt(buffer);
+        byte[] path = Arrays.copyOf(previousPath, shared + suffixLength);
+        buffer.get(path, shared, suffixLength);
+
+        String type = (flags & FLAG_TREE) != 0 ? "tree" : "blob";
+        Blob.IndexEntry entry = new Blob.IndexEntry(type, id, new String(path, StandardCharsets.UTF_8),
+            (flags & FLAG_DELETED) != 0);
+        entry.stat = stat;
+        return entry;
+    }
+
+    private static int sharedPrefix(byte[] a, byte[] b) {
+        int max = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < max && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,320 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the index in memory for the duration of an operation. Stage, remove and tree
+ * updates are applied to a path-sorted map and written back once by {@link #flush()}.
+ * Updates may come from several threads while a parallel snapshot is running.
+ *
+ * Every session also records which paths it changed. If another session or process has
+ * written the index since this one loaded it, flush reloads the index and applies only
+ * those changes on top, so concurrent stagers don't overwrite each other's entries.
+ */
+public class IndexSession {
+    // Marks a removed path in the change log
+    private static final Blob.IndexEntry REMOVED = new Blob.IndexEntry("blob", ObjectId.ZERO, "");
+
+    private final File indexFile;
+    private final ConcurrentSkipListMap<String, Blob.IndexEntry> entries = new ConcurrentSkipListMap<>();
+    private final Map<String, Blob.IndexEntry> changes = new ConcurrentHashMap<>();
+    private final long timestamp;
+    private FileStat loadedStat;
+    private volatile boolean dirty;
+    // Set when the whole index is rewritten from this session, such as a format conversion
+    private volatile boolean rewrite;
+
+    private IndexSession(File indexFile) throws IOException {
+        this.indexFile = indexFile;
+        if (indexFile.exists()) {
+            timestamp = Files.getLastModifiedTime(indexFile.toPath()).to(TimeUnit.NANOSECONDS);
+            load();
+        } else {
+            timestamp = Long.MIN_VALUE;
+        }
+    }
+
+    private void load() throws IOException {
+        entries.clear();
+        if (!indexFile.exists()) {
+            loadedStat = null;
+            return;
+        }
+        loadedStat = FileStat.of(indexFile.toPath());
+        if (IndexFile.isBinary(indexFile)) {
+            for (Blob.IndexEntry entry : IndexFile.readAll(indexFile)) {
+                entries.put(entry.path, entry);
+            }
+        } else {
+            readText();
+        }
+        if (IndexFile.version(indexFile) < IndexFile.VERSION) {
+            forgetLegacyHashes();
+        }
+    }
+
+    public static IndexSession open(String repoPath) throws IOException {
+        return new IndexSession(new File(repoPath, "git/index"));
+    }
+
+    /** Reads a single entry straight from the index file without loading a session. */
+    public static Blob.IndexEntry lookup(String repoPath, String path) throws IOException {
+        return IndexFile.find(new File(repoPath, "git/index"), path);
+    }
+
+    /** Reads the original line-based index format, which is converted to binary on the next flush. */
+    private void readText() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // type hash path [size mtime fileKey mode] [deleted]
+                String[] parts = line.split(" ");
+                if (parts.length >= 3) {
+                    int next = 3;
+                    FileStat stat = null;
+                    if (parts.length >= 7) {
+                        stat = FileStat.parse(parts[3], parts[4], parts[5], parts[6]);
+                        next = 7;
+                    }
+                    boolean deleted = parts.length > next && parts[next].equals("deleted");
+                    Blob.IndexEntry entry = new Blob.IndexEntry(parts[0], ObjectId.fromHex(parts[1]), parts[2], deleted);
+                    entry.stat = stat;
+                    entries.put(entry.path, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes in older indexes were computed over compressed bytes, so none of them can be
+     * reused: dropping stat data and tree entries makes the next snapshot re-hash every file.
+     */
+    private void forgetLegacyHashes() {
+        entries.values().removeIf(entry -> entry.type.equals("tree"));
+        for (Blob.IndexEntry entry : entries.values()) {
+            entry.stat = null;
+        }
+        dirty = true;
+        rewrite = true;
+    }
+
+    /** Modification time of the index file when it was loaded, used for racy-entry checks. */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public Blob.IndexEntry get(String path) {
+        return entries.get(path);
+    }
+
+    public Collection<Blob.IndexEntry> entries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void put(Blob.IndexEntry entry) {
+        Blob.IndexEntry previous = entries.put(entry.path, entry);
+        changes.put(entry.path, entry);
+        if (entry.type.equals("blob") && (previous == null || previous.deleted || !previous.id.equals(entry.id))) {
+            invalidateAncestors(entry.path);
+        }
+        dirty = true;
+    }
+
+    public synchronized boolean markDeleted(String path) {
+        Blob.IndexEntry entry = entries.get(path);
+        if (entry == null || entry.deleted) {
+            return false;
+        }
+        entry.deleted = true;
+        changes.put(path, entry);
+        invalidateAncestors(path);
+        dirty = true;
+        return true;
+    }
+
+    /** Marks a path and everything below it as deleted, returning the paths that weren't already. */
+    public List<String> markSubtreeDeleted(String path) {
+        List<String> marked = new ArrayList<>();
+        if (markDeleted(path)) {
+            marked.add(path);
+        }
+        for (String below : entries.subMap(path + "/", path + "/\uffff").keySet()) {
+            if (markDeleted(below)) {
+                marked.add(below);
+            }
+        }
+        return marked;
+    }
+
+    public void remove(String path) {
+        if (entries.remove(path) != null) {
+            changes.put(path, REMOVED);
+            invalidateAncestors(path);
+            dirty = true;
+        }
+    }
+
+    /** The entries at and below a path. */
+    public List<Blob.IndexEntry> subtree(String path) {
+        List<Blob.IndexEntry> found = new ArrayList<>();
+        Blob.IndexEntry self = entries.get(path);
+        if (self != null) {
+            found.add(self);
+        }
+        found.addAll(entries.subMap(path + "/", path + "/\uffff").values());
+        return found;
+    }
+
+    /** Removes a path and every entry below it, returning the removed entries. */
+    public List<Blob.IndexEntry> removeSubtree(String path) {
+        List<Blob.IndexEntry> removed = new ArrayList<>();
+        Blob.IndexEntry self = entries.remove(path);
+        if (self != null) {
+            removed.add(self);
+        }
+        Map<String, Blob.IndexEntry> below = entries.subMap(path + "/", path + "/\uffff");
+        removed.addAll(below.values());
+        below.clear();
+        for (Blob.IndexEntry entry : removed) {
+            changes.put(entry.path, REMOVED);
+        }
+        if (!removed.isEmpty()) {
+            invalidateAncestors(path);
+            dirty = true;
+        }
+        return removed;
+    }
+
+    /**
+     * Drops the recorded tree hashes of every directory containing this path, since they no
+     * longer describe its contents.
+     */
+    private void invalidateAncestors(String path) {
+        String parent = path;
+        // Ends with the working directory root, recorded under the empty path
+        while (!parent.isEmpty()) {
+            int slash = parent.lastIndexOf('/');
+            parent = slash < 0 ? "" : parent.substring(0, slash);
+            Blob.IndexEntry entry = entries.get(parent);
+            if (entry != null && entry.type.equals("tree")) {
+                entries.remove(parent);
+            }
+            // Recorded even if absent here, another writer may have added it since this session loaded
+            changes.put(parent, REMOVED);
+        }
+    }
+
+    /**
+     * Paths of the direct children of a directory ("" for the working directory root),
+     * including subdirectories that only appear as a prefix of deeper entries.
+     */
+    public List<String> children(String dirPath) {
+        String prefix = dirPath.isEmpty() ? "" : dirPath + "/";
+        Set<String> children = new LinkedHashSet<>();
+        String key = entries.ceilingKey(prefix);
+        while (key != null && key.startsWith(prefix)) {
+            int slash = key.indexOf('/', prefix.length());
+            if (slash < 0) {
+                if (!key.equals(dirPath)) {
+                    children.add(key);
+                }
+                key = entries.higherKey(key);
+            } else {
+                // Jump past everything under this subdirectory in one step
+                String child = key.substring(0, slash);
+                children.add(child);
+                key = entries.higherKey(child + "/\uffff");
+            }
+        }
+        return new ArrayList<>(children);
+    }
+
+    /** Makes the next flush write out every entry of this session as it is. */
+    public void markDirty() {
+        dirty = true;
+        rewrite = true;
+    }
+
+    public int removeDeleted() {
+        int before = entries.size();
+        entries.values().removeIf(entry -> {
+            if (entry.deleted) {
+                changes.put(entry.path, REMOVED);
+            }
+            return entry.deleted;
+        });
+        int removed = before - entries.size();
+        if (removed > 0) {
+            dirty = true;
+        }
+        return removed;
+    }
+
+    /**
+     * Writes the index into git/index.lock and renames it over the old one, so readers never
+     * see a partially written index. If the index changed on disk since this session read it,
+     * this session's changes are applied to the current index instead. Does nothing if
+     * nothing changed.
+     */
+    public void flush() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        // Objects the new index refers to have to be on disk before it is
+        ObjectStore.open(indexFile.getParentFile().getParent()).sync();
+        long start = System.nanoTime();
+        ReentrantLock lock = RepositoryLocks.forGitDir(indexFile.getParentFile()).indexLock();
+        lock.lock();
+        try (LockFile lockFile = LockFile.acquire(indexFile)) {
+            synchronized (this) {
+                if (!rewrite && !isUnchangedOnDisk()) {
+                    replayOnto();
+                }
+                IndexFile.write(entries.values(), lockFile.getFile());
+                lockFile.commit();
+                loadedStat = FileStat.of(indexFile.toPath());
+                changes.clear();
+                dirty = false;
+                rewrite = false;
+                Instrumentation.listener().indexFlushed(entries.size());
+            }
+        } finally {
+            lock.unlock();
+        }
+        Instrumentation.listener().phase(RepositoryListener.Phase.INDEX, System.nanoTime() - start);
+    }
+
+    private boolean isUnchangedOnDisk() throws IOException {
+        if (!indexFile.exists()) {
+            return loadedStat == null;
+        }
+        // The rename gives every written index a new file key, so this also catches same-size rewrites
+        return loadedStat != null && loadedStat.matches(FileStat.of(indexFile.toPath()));
+    }
+
+    /**
+     * Reloads the index and applies this session's changes to it. Recorded tree hashes from
+     * this session may not account for the other writer's entries, so they are dropped and
+     * rebuilt by the next snapshot.
+     */
+    private void replayOnto() throws IOException {
+        load();
+        for (Map.Entry<String, Blob.IndexEntry> change : changes.entrySet()) {
+            Blob.IndexEntry entry = change.getValue();
+            if (entry == REMOVED || entry.type.equals("tree")) {
+                entries.remove(change.getKey());
+            } else {
+                entries.put(change.getKey(), entry);
+                invalidateAncestors(change.getKey());
+            }
+        }
+    }
+}
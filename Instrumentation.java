@@ -0,0 +1,16 @@
+/** Holds the listener the repository reports to, which does nothing unless one is installed. */
+public final class Instrumentation {
+    private static volatile RepositoryListener listener = RepositoryListener.NOOP;
+
+    private Instrumentation() {
+    }
+
+    public static RepositoryListener listener() {
+        return listener;
+    }
+
+    /** Installs a listener for the whole process; null restores the no-op listener. */
+    public static void setListener(RepositoryListener newListener) {
+        listener = newListener != null ? newListener : RepositoryListener.NOOP;
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * Exclusive lock on a repository file, held by creating "name.lock" next to it. The new
+ * content is written into the lock file and renamed over the target by {@link #commit()},
+ * so readers see either the old or the new file. Closing without committing releases the
+ * lock and leaves the target untouched.
+ */
+public class LockFile implements Closeable {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    private final File target;
+    private final File lock;
+    private boolean released;
+
+    private LockFile(File target, File lock) {
+        this.target = target;
+        this.lock = lock;
+    }
+
+    public static LockFile acquire(File target) throws IOException {
+        return acquire(target, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /** Waits up to the timeout for another holder to release the lock. */
+    public static LockFile acquire(File target, long timeoutMillis) throws IOException {
+        File lock = new File(target.getPath() + ".lock");
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long backoff = 1;
+        while (true) {
+            try {
+                Files.createFile(lock.toPath());
+                return new LockFile(target, lock);
+            } catch (FileAlreadyExistsException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new IOException("Unable to lock " + target + ": " + lock
+                        + " exists. If no other process is running, remove it.");
+                }
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + lock);
+            }
+            backoff = Math.min(backoff * 2, 50);
+        }
+    }
+
+    /** The lock file itself, which the new content is written to. */
+    public File getFile() {
+        return lock;
+    }
+
+    public void write(byte[] content) throws IOException {
+        Files.write(lock.toPath(), content);
+    }
+
+    /**
+     * Renames the lock file over the target, which also releases the lock. Unless durability
+     * is off, the new content is synced before the rename and the directory after it.
+     */
+    public void commit() throws IOException {
+        boolean sync = Durability.mode() != Durability.NONE;
+        if (sync) {
+            Durability.syncFile(lock);
+        }
+        Files.move(lock.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        released = true;
+        if (sync) {
+            Durability.syncDirectory(target.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!released) {
+            Files.deleteIfExists(lock.toPath());
+            released = true;
+        }
+    }
+}
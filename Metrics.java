@@ -0,0 +1,209 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listener that keeps counters and per-phase latency histograms, and exports them as JSON.
+ *
+ * <pre>
+ *   Metrics metrics = new Metrics();
+ *   Instrumentation.setListener(metrics);
+ *   ...
+ *   metrics.writeJson(new File("metrics.json"));
+ * </pre>
+ */
+public class Metrics implements RepositoryListener {
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesHashed = new LongAdder();
+    private final LongAdder bytesCompressed = new LongAdder();
+    private final LongAdder objectsWritten = new LongAdder();
+    private final LongAdder objectsDeduplicated = new LongAdder();
+    private final LongAdder pathsDeleted = new LongAdder();
+    private final LongAdder indexFlushes = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder headUpdates = new LongAdder();
+    private final Map<Phase, Histogram> phases = new EnumMap<>(Phase.class);
+
+    public Metrics() {
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new Histogram());
+        }
+    }
+
+    /**
+     * Latencies in power-of-two buckets of nanoseconds: bucket i counts values below 2^i.
+     * Percentiles are reported as the upper bound of the bucket they fall in.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value) - (value == 0 ? 1 : 0));
+            count.increment();
+            totalNanos.add(value);
+            maxNanos.accumulate(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long percentileNanos(double percentile) {
+            long total = getCount();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(i == 63 ? Long.MAX_VALUE : 1L << i, getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+    }
+
+    @Override
+    public void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    @Override
+    public void bytesHashed(long bytes) {
+        bytesHashed.add(bytes);
+    }
+
+    @Override
+    public void bytesCompressed(long bytes) {
+        bytesCompressed.add(bytes);
+    }
+
+    @Override
+    public void objectWritten(String hash) {
+        objectsWritten.increment();
+    }
+
+    @Override
+    public void objectDeduplicated(String hash) {
+        objectsDeduplicated.increment();
+    }
+
+    @Override
+    public void pathDeleted(String path) {
+        pathsDeleted.increment();
+    }
+
+    @Override
+    public void indexFlushed(int entries) {
+        indexFlushes.increment();
+    }
+
+    @Override
+    public void commitCreated(String commitHash) {
+        commits.increment();
+    }
+
+    @Override
+    public void headUpdated(String commitHash) {
+        headUpdates.increment();
+    }
+
+    @Override
+    public void phase(Phase phase, long nanos) {
+        phases.get(phase).record(nanos);
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesHashed() {
+        return bytesHashed.sum();
+    }
+
+    public long getBytesCompressed() {
+        return bytesCompressed.sum();
+    }
+
+    public long getObjectsWritten() {
+        return objectsWritten.sum();
+    }
+
+    public long getObjectsDeduplicated() {
+        return objectsDeduplicated.sum();
+    }
+
+    public long getPathsDeleted() {
+        return pathsDeleted.sum();
+    }
+
+    public long getIndexFlushes() {
+        return indexFlushes.sum();
+    }
+
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    public long getHeadUpdates() {
+        return headUpdates.sum();
+    }
+
+    public Histogram getPhase(Phase phase) {
+        return phases.get(phase);
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"counters\": {\n");
+        json.append("    \"bytesRead\": ").append(getBytesRead()).append(",\n");
+        json.append("    \"bytesHashed\": ").append(getBytesHashed()).append(",\n");
+        json.append("    \"bytesCompressed\": ").append(getBytesCompressed()).append(",\n");
+        json.append("    \"objectsWritten\": ").append(getObjectsWritten()).append(",\n");
+        json.append("    \"objectsDeduplicated\": ").append(getObjectsDeduplicated()).append(",\n");
+        json.append("    \"pathsDeleted\": ").append(getPathsDeleted()).append(",\n");
+        json.append("    \"indexFlushes\": ").append(getIndexFlushes()).append(",\n");
+        json.append("    \"commits\": ").append(getCommits()).append(",\n");
+        json.append("    \"headUpdates\": ").append(getHeadUpdates()).append("\n");
+        json.append("  },\n  \"phases\": {\n");
+        Phase[] all = Phase.values();
+        for (int i = 0; i < all.length; i++) {
+            Histogram histogram = phases.get(all[i]);
+            json.append("    \"").append(all[i].name().toLowerCase()).append("\": {")
+                .append("\"count\": ").append(histogram.getCount())
+                .append(", \"totalNanos\": ").append(histogram.getTotalNanos())
+                .append(", \"p50Nanos\": ").append(histogram.percentileNanos(50))
+                .append(", \"p90Nanos\": ").append(histogram.percentileNanos(90))
+                .append(", \"p99Nanos\": ").append(histogram.percentileNanos(99))
+                .append(", \"maxNanos\": ").append(histogram.getMaxNanos())
+                .append("}").append(i < all.length - 1 ? ",\n" : "\n");
+        }
+        json.append("  }\n}\n");
+        return json.toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        Files.write(file.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+    }
+}
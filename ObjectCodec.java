@@ -0,0 +1,21 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * How an object's content is encoded on disk. The codec is recorded in each stored object's
+ * header, so it can differ from object to object without affecting object IDs, which are
+ * always computed over the uncompressed content.
+ */
+public interface ObjectCodec {
+    /** Identifier written into the stored object header. */
+    int id();
+
+    String name();
+
+    /** Wraps a stream so content written to it is encoded into out. Closing it closes out. */
+    OutputStream encode(OutputStream out) throws IOException;
+
+    /** Wraps a stream of encoded content so reading it yields the original content. */
+    InputStream decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,208 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The built-in codecs and the policy that picks one per object. Deflaters and inflaters are
+ * pooled per thread, so writing many small objects doesn't allocate native zlib state each time.
+ */
+public class ObjectCodecs {
+    public static final ObjectCodec NONE = new PlainCodec(0, "none");
+    // Chosen instead of deflate for content that sampling shows won't compress
+    public static final ObjectCodec STORE = new PlainCodec(1, "store");
+
+    private static final int DEFLATE_BASE_ID = 0x10;
+    private static final ObjectCodec[] DEFLATE = new ObjectCodec[10];
+
+    static {
+        for (int level = 1; level <= 9; level++) {
+            DEFLATE[level] = new DeflateCodec(level);
+        }
+    }
+
+    // How much of the start of an object is test-compressed to decide whether deflate pays off
+    public static final int SAMPLE_SIZE = 64 * 1024;
+    private static final double INCOMPRESSIBLE_RATIO = 0.9;
+    private static final int POOL_LIMIT = 4;
+
+    private static volatile ObjectCodec defaultCodec = DEFLATE[6];
+
+    private static final ThreadLocal<ArrayDeque<Deflater>[]> DEFLATERS = ThreadLocal.withInitial(ObjectCodecs::newDeflaterPools);
+    private static final ThreadLocal<ArrayDeque<Inflater>> INFLATERS = ThreadLocal.withInitial(ArrayDeque::new);
+
+    public static ObjectCodec deflate(int level) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("Deflate level must be between 1 and 9: " + level);
+        }
+        return DEFLATE[level];
+    }
+
+    public static ObjectCodec byId(int id) throws IOException {
+        if (id == NONE.id()) {
+            return NONE;
+        } else if (id == STORE.id()) {
+            return STORE;
+        } else if (id > DEFLATE_BASE_ID && id <= DEFLATE_BASE_ID + 9) {
+            return DEFLATE[id - DEFLATE_BASE_ID];
+        }
+        throw new IOException("Unknown object codec: " + id);
+    }
+
+    public static ObjectCodec getDefault() {
+        return defaultCodec;
+    }
+
+    /** Sets the codec new objects are written with, e.g. deflate(1) for speed or deflate(9) for size. */
+    public static void setDefault(ObjectCodec codec) {
+        defaultCodec = codec;
+    }
+
+    /**
+     * Picks the codec for one object from the start of its content. Deflate is skipped in
+     * favour of STORE when a fast trial compression of the sample barely shrinks it.
+     */
+    public static ObjectCodec choose(byte[] sample, int length) {
+        ObjectCodec codec = defaultCodec;
+        if (!(codec instanceof DeflateCodec) || length == 0) {
+            return codec;
+        }
+        Deflater deflater = acquireDeflater(1);
+        try {
+            deflater.setInput(sample, 0, Math.min(length, SAMPLE_SIZE));
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buffer);
+            }
+            return compressed >= length * INCOMPRESSIBLE_RATIO ? STORE : codec;
+        } finally {
+            releaseDeflater(1, deflater);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Deflater>[] newDeflaterPools() {
+        ArrayDeque<Deflater>[] pools = (ArrayDeque<Deflater>[]) new ArrayDeque<?>[10];
+        for (int level = 1; level <= 9; level++) {
+            pools[level] = new ArrayDeque<>();
+        }
+        return pools;
+    }
+
+    private static Deflater acquireDeflater(int level) {
+        Deflater deflater = DEFLATERS.get()[level].poll();
+        return deflater != null ? deflater : new Deflater(level);
+    }
+
+    private static void releaseDeflater(int level, Deflater deflater) {
+        ArrayDeque<Deflater> pool = DEFLATERS.get()[level];
+        if (pool.size() < POOL_LIMIT) {
+            deflater.reset();
+            pool.push(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    private static Inflater acquireInflater() {
+        Inflater inflater = INFLATERS.get().poll();
+        return inflater != null ? inflater : new Inflater();
+    }
+
+    private static void releaseInflater(Inflater inflater) {
+        ArrayDeque<Inflater> pool = INFLATERS.get();
+        if (pool.size() < POOL_LIMIT) {
+            inflater.reset();
+            pool.push(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+
+    private static class PlainCodec implements ObjectCodec {
+        private final int id;
+        private final String name;
+
+        PlainCodec(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public OutputStream encode(OutputStream out) {
+            return out;
+        }
+
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    }
+
+    private static class DeflateCodec implements ObjectCodec {
+        private final int level;
+
+        DeflateCodec(int level) {
+            this.level = level;
+        }
+
+        public int id() {
+            return DEFLATE_BASE_ID + level;
+        }
+
+        public String name() {
+            return "deflate-" + level;
+        }
+
+        public OutputStream encode(OutputStream out) {
+            Deflater deflater = acquireDeflater(level);
+            return new DeflaterOutputStream(out, deflater, 64 * 1024) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        // The thread that closes the stream may not be the one that opened it
+                        releaseDeflater(level, deflater);
+                    }
+                }
+            };
+        }
+
+        public InputStream decode(InputStream in) {
+            Inflater inflater = acquireInflater();
+            return new InflaterInputStream(in, inflater, 64 * 1024) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        releaseInflater(inflater);
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads blobs, trees and commits back out of the object store. Decompressed object
+ * content is kept in a least-recently-used cache bounded by total bytes.
+ */
+public class ObjectDatabase {
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private static final Map<String, ObjectDatabase> OPEN_DATABASES = new ConcurrentHashMap<>();
+
+    private final ObjectStore store;
+    private final long maxCacheBytes;
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(256, 0.75f, true);
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+
+    public ObjectDatabase(ObjectStore store, long maxCacheBytes) {
+        this.store = store;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /** The database for a repository, shared so its cache is reused across operations. */
+    public static ObjectDatabase open(String repoPath) {
+        ObjectStore store = ObjectStore.open(repoPath);
+        // A store closed since the database was opened means the repository was recreated
+        return OPEN_DATABASES.compute(store.getObjectsDir().getPath(),
+            (path, open) -> open != null && open.store == store ? open : new ObjectDatabase(store, DEFAULT_CACHE_BYTES));
+    }
+
+    public ObjectStore getStore() {
+        return store;
+    }
+
+    public byte[] readBlob(String hash) throws IOException {
+        return read(hash);
+    }
+
+    /** Streams a blob, for content too large to hold in memory. Only cached content is served from memory. */
+    public InputStream openBlob(String hash) throws IOException {
+        synchronized (this) {
+            byte[] cached = cache.get(hash);
+            if (cached != null) {
+                hits++;
+                return new ByteArrayInputStream(cached);
+            }
+            misses++;
+        }
+        return store.openObject(hash);
+    }
+
+    public List<TreeEntry> readTree(String hash) throws IOException {
+        String content = new String(read(hash), StandardCharsets.UTF_8);
+        List<TreeEntry> entries = new ArrayList<>();
+        for (String line : content.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split(" ", 3);
+            if (parts.length != 3) {
+                throw new IOException("Malformed tree " + hash + ": " + line);
+            }
+            entries.add(new TreeEntry(parts[0], parts[1], parts[2]));
+        }
+        return entries;
+    }
+
+    public Commit readCommit(String hash) throws IOException {
+        return Commit.parse(new String(read(hash), StandardCharsets.UTF_8));
+    }
+
+    /** The decompressed content of any object, served from the cache when possible. */
+    public byte[] read(String hash) throws IOException {
+        synchronized (this) {
+            byte[] cached = cache.get(hash);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        // Read outside the lock so concurrent misses don't queue behind each other's I/O
+        byte[] content = store.read(hash);
+        if (content.length <= maxCacheBytes / 4) {
+            synchronized (this) {
+                if (cache.put(hash, content) == null) {
+                    cachedBytes += content.length;
+                }
+                evict();
+            }
+        }
+        return content;
+    }
+
+    private void evict() {
+        Iterator<byte[]> eldest = cache.values().iterator();
+        while (cachedBytes > maxCacheBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized void clearCache() {
+        cache.clear();
+        cachedBytes = 0;
+    }
+}
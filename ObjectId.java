@@ -0,0 +1,193 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A 20-byte SHA-1 object id held in two longs and an int, instead of a 40-character hex
+ * String. Ids are immutable; hex is only produced when a String is actually needed, and
+ * parsing and formatting don't allocate beyond the result.
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+    public static final int RAW_LENGTH = 20;
+    public static final int HEX_LENGTH = 40;
+    public static final ObjectId ZERO = new ObjectId(0, 0, 0);
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final long w1;  // bytes 0-7
+    private final long w2;  // bytes 8-15
+    private final int w3;   // bytes 16-19
+
+    private ObjectId(long w1, long w2, int w3) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    public static ObjectId fromRaw(byte[] raw) {
+        return fromRaw(raw, 0);
+    }
+
+    public static ObjectId fromRaw(byte[] raw, int offset) {
+        return new ObjectId(readLong(raw, offset), readLong(raw, offset + 8), (int) readBits(raw, offset + 16, 4));
+    }
+
+    /** Reads the next 20 bytes of a buffer as an id. */
+    public static ObjectId fromRaw(java.nio.ByteBuffer buffer) {
+        long w1 = buffer.getLong();
+        long w2 = buffer.getLong();
+        return new ObjectId(w1, w2, buffer.getInt());
+    }
+
+    public static ObjectId fromHex(CharSequence hex) {
+        if (hex.length() != HEX_LENGTH) {
+            throw new IllegalArgumentException("Not an object id: " + hex);
+        }
+        return new ObjectId(parseHex(hex, 0, 16), parseHex(hex, 16, 16), (int) parseHex(hex, 32, 8));
+    }
+
+    public static boolean isId(CharSequence hex) {
+        if (hex == null || hex.length() != HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            if (Character.digit(hex.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void copyRawTo(byte[] target, int offset) {
+        writeBits(w1, target, offset, 8);
+        writeBits(w2, target, offset + 8, 8);
+        writeBits(w3, target, offset + 16, 4);
+    }
+
+    public byte[] toRaw() {
+        byte[] raw = new byte[RAW_LENGTH];
+        copyRawTo(raw, 0);
+        return raw;
+    }
+
+    /** Appends the hex form without building an intermediate String. */
+    public StringBuilder appendTo(StringBuilder out) {
+        appendHex(out, w1, 16);
+        appendHex(out, w2, 16);
+        appendHex(out, w3, 8);
+        return out;
+    }
+
+    /** The 40-character lowercase hex form. */
+    public String name() {
+        char[] chars = new char[HEX_LENGTH];
+        formatHex(chars, 0, w1, 16);
+        formatHex(chars, 16, w2, 16);
+        formatHex(chars, 32, w3, 8);
+        return new String(chars);
+    }
+
+    @Override
+    public int hashCode() {
+        // SHA-1 bits are already uniformly distributed
+        return (int) w1;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ObjectId)) {
+            return false;
+        }
+        ObjectId id = (ObjectId) other;
+        return w1 == id.w1 && w2 == id.w2 && w3 == id.w3;
+    }
+
+    /** Orders ids the same way as their hex names. */
+    @Override
+    public int compareTo(ObjectId other) {
+        int order = Long.compareUnsigned(w1, other.w1);
+        if (order == 0) {
+            order = Long.compareUnsigned(w2, other.w2);
+        }
+        if (order == 0) {
+            order = Integer.compareUnsigned(w3, other.w3);
+        }
+        return order;
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    /** A SHA-1 digest, for checksums over files that aren't themselves objects. */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /** One of the five 32-bit words of the id, for hashing schemes that need several hashes. */
+    int word(int index) {
+        switch (index) {
+            case 0:
+                return (int) (w1 >>> 32);
+            case 1:
+                return (int) w1;
+            case 2:
+                return (int) (w2 >>> 32);
+            case 3:
+                return (int) w2;
+            default:
+                return w3;
+        }
+    }
+
+    private static long readLong(byte[] raw, int offset) {
+        return readBits(raw, offset, 8);
+    }
+
+    private static long readBits(byte[] raw, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (raw[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void writeBits(long value, byte[] target, int offset, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            target[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long parseHex(CharSequence hex, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = Character.digit(hex.charAt(offset + i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Not an object id: " + hex);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static void appendHex(StringBuilder out, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            out.append(HEX_DIGITS[(int) (value >>> shift) & 0xf]);
+        }
+    }
+
+    private static void formatHex(char[] chars, int offset, long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            chars[offset + i] = HEX_DIGITS[(int) value & 0xf];
+            value >>>= 4;
+        }
+    }
+}
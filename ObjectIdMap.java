@@ -0,0 +1,89 @@
+import java.util.Arrays;
+
+/**
+ * Map keyed by ObjectId, using open addressing with linear probing over plain arrays so that
+ * lookups don't allocate and entries don't need a node object each. Not thread-safe.
+ */
+public class ObjectIdMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private ObjectId[] keys;
+    private Object[] values;
+    private int size;
+
+    public ObjectIdMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public ObjectIdMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new ObjectId[capacity];
+        values = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(ObjectId id) {
+        return keys[slot(keys, id)] != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(ObjectId id) {
+        return (V) values[slot(keys, id)];
+    }
+
+    /** Returns the previous value for the id, or null. */
+    @SuppressWarnings("unchecked")
+    public V put(ObjectId id, V value) {
+        int slot = slot(keys, id);
+        V previous = (V) values[slot];
+        if (keys[slot] == null) {
+            keys[slot] = id;
+            size++;
+        }
+        values[slot] = value;
+        if (size * 2 > keys.length) {
+            resize();
+        }
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /** The slot holding the id, or the empty slot where it would go. */
+    static int slot(ObjectId[] table, ObjectId id) {
+        int mask = table.length - 1;
+        int slot = id.hashCode() & mask;
+        while (table[slot] != null && !table[slot].equals(id)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        ObjectId[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new ObjectId[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = slot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/** Set of ObjectIds with the same open-addressed layout as ObjectIdMap. Not thread-safe. */
+public class ObjectIdSet {
+    private static final int MIN_CAPACITY = 16;
+
+    private ObjectId[] table;
+    private int size;
+
+    public ObjectIdSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public ObjectIdSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        table = new ObjectId[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(ObjectId id) {
+        return table[ObjectIdMap.slot(table, id)] != null;
+    }
+
+    /** Returns true if the id wasn't in the set yet. */
+    public boolean add(ObjectId id) {
+        int slot = ObjectIdMap.slot(table, id);
+        if (table[slot] != null) {
+            return false;
+        }
+        table[slot] = id;
+        size++;
+        if (size * 2 > table.length) {
+            resize();
+        }
+        return true;
+    }
+
+    /** Returns true if the id was in the set. */
+    public boolean remove(ObjectId id) {
+        int slot = ObjectIdMap.slot(table, id);
+        if (table[slot] == null) {
+            return false;
+        }
+        table[slot] = null;
+        size--;
+        // Put back the rest of the probe run, so nothing after the gap becomes unreachable
+        int mask = table.length - 1;
+        for (int next = (slot + 1) & mask; table[next] != null; next = (next + 1) & mask) {
+            ObjectId moved = table[next];
+            table[next] = null;
+            table[ObjectIdMap.slot(table, moved)] = moved;
+        }
+        return true;
+    }
+
+    public void forEach(Consumer<ObjectId> action) {
+        for (ObjectId id : table) {
+            if (id != null) {
+                action.accept(id);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(table, null);
+        size = 0;
+    }
+
+    private void resize() {
+        ObjectId[] old = table;
+        table = new ObjectId[old.length * 2];
+        for (ObjectId id : old) {
+            if (id != null) {
+                table[ObjectIdMap.slot(table, id)] = id;
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.List;
+
+/**
+ * Ids of every object in a store, held in memory so that asking whether an object is stored
+ * doesn't touch the file system. It is loaded once from the loose object directories and the
+ * pack indexes, and updated as objects are written or collected.
+ *
+ * A Bloom filter sits in front of the set. Most lookups for objects that aren't stored yet,
+ * which is every new blob and tree of a snapshot, are answered by it alone.
+ */
+class ObjectIndex {
+    private static final int BITS_PER_ID = 10;
+    private static final int HASHES = 4;
+    private static final int MIN_BLOOM_BITS = 1 << 16;
+
+    private final ObjectIdSet ids;
+    // Replaced whole when it grows, so lock-free readers always see a complete filter
+    private volatile long[] bloom;
+    private int bloomCapacity;
+
+    ObjectIndex(List<ObjectId> known) {
+        ids = new ObjectIdSet(known.size());
+        for (ObjectId id : known) {
+            ids.add(id);
+        }
+        rebuildBloom();
+    }
+
+    boolean contains(ObjectId id) {
+        if (!mightContain(bloom, id)) {
+            return false;
+        }
+        synchronized (this) {
+            return ids.contains(id);
+        }
+    }
+
+    synchronized void add(ObjectId id) {
+        if (!ids.add(id)) {
+            return;
+        }
+        if (ids.size() > bloomCapacity) {
+            rebuildBloom();
+        } else {
+            set(bloom, id);
+        }
+    }
+
+    /** Bits of removed ids stay set in the filter, they only cost a lookup in the set. */
+    synchronized void remove(ObjectId id) {
+        ids.remove(id);
+    }
+
+    synchronized int size() {
+        return ids.size();
+    }
+
+    private void rebuildBloom() {
+        int capacity = Math.max(ids.size() * 2, MIN_BLOOM_BITS / BITS_PER_ID);
+        long bits = Long.highestOneBit((long) capacity * BITS_PER_ID - 1) << 1;
+        long[] filter = new long[(int) (bits / 64)];
+        ids.forEach(id -> set(filter, id));
+        bloomCapacity = capacity;
+        bloom = filter;
+    }
+
+    private static void set(long[] filter, ObjectId id) {
+        long mask = filter.length * 64L - 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = id.word(i) & mask;
+            filter[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContain(long[] filter, ObjectId id) {
+        long mask = filter.length * 64L - 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = id.word(i) & mask;
+            if ((filter[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
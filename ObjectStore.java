@@ -0,0 +1,625 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Location of stored objects under git/objects. Objects are written in a two-character
+ * fan-out layout (objects/ab/cdef...) so no single directory grows to hold every object.
+ * Objects written by older versions directly under git/objects are still found.
+ * Packs under git/objects/pack are checked before loose objects.
+ *
+ * A loose object starts with a header naming the codec its content is encoded with.
+ * Objects from before codecs existed have no header and are either gzip or plain content.
+ *
+ * A chunked object's header is followed by a manifest instead: one "chunk-hash length" line
+ * per chunk, in order. Its content is the concatenation of those chunk objects and its hash
+ * is the hash of that whole content, so readers and trees can't tell it apart. Manifests are
+ * always kept loose; their chunks are ordinary objects and may be packed.
+ *
+ * Which objects are stored is kept in memory (see ObjectIndex) after the first lookup, so
+ * contains() and writes never probe the file system to decide whether an object exists.
+ * Reads still go to disk, and find objects other processes wrote that the index doesn't know.
+ */
+public class ObjectStore {
+    private static final byte[] HEADER_MAGIC = {0, 'G', 'O', 'B'};
+    private static final int HEADER_SIZE = HEADER_MAGIC.length + 1;
+    // Header id of a chunk manifest, outside the range of codec ids
+    private static final int CHUNKED = 0xff;
+
+    private static final Map<String, ObjectStore> OPEN_STORES = new ConcurrentHashMap<>();
+
+    private final File objectsDir;
+    private final File packDir;
+    private final List<PackFile> packs = new CopyOnWriteArrayList<>();
+    private volatile long packDirModified = -1;
+    // Objects installed without a sync since the last barrier, in BATCHED mode
+    private final Set<File> unsynced = ConcurrentHashMap.newKeySet();
+    private final Object syncLock = new Object();
+    // Loaded on first use; dropped when a collection in another process may have deleted objects
+    private volatile ObjectIndex objectIndex;
+    // Identity and last modification of the collected stamp when the index was loaded
+    private volatile Object loadedStamp;
+
+    private ObjectStore(File objectsDir) {
+        this.objectsDir = objectsDir;
+        this.packDir = new File(objectsDir, "pack");
+    }
+
+    /** The store for a repository, shared so its packs are only opened once per process. */
+    public static ObjectStore open(String repoPath) {
+        File objectsDir = new File(repoPath, "git/objects").getAbsoluteFile();
+        return OPEN_STORES.computeIfAbsent(objectsDir.getPath(), path -> new ObjectStore(objectsDir));
+    }
+
+    /**
+     * Closes the shared store for a repository whose git directory is being deleted or
+     * recreated, so the next open() starts from what is on disk.
+     */
+    public static void close(String repoPath) {
+        File objectsDir = new File(repoPath, "git/objects").getAbsoluteFile();
+        ObjectStore store = OPEN_STORES.remove(objectsDir.getPath());
+        if (store != null) {
+            store.objectIndex = null;
+            for (PackFile pack : store.packs) {
+                store.closePack(pack);
+            }
+        }
+    }
+
+    public File getObjectsDir() {
+        return objectsDir;
+    }
+
+    /** Where an object with this hash is written. */
+    public File pathFor(String hash) {
+        return new File(new File(objectsDir, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    /** The loose file holding this object, checking the fan-out location before the flat one, or null. */
+    public File locate(String hash) {
+        File file = pathFor(hash);
+        if (file.exists()) {
+            return file;
+        }
+        File legacyFile = new File(objectsDir, hash);
+        return legacyFile.exists() ? legacyFile : null;
+    }
+
+    /**
+     * Whether an object is stored, answered from memory without touching the file system.
+     * An object another process wrote after the index was loaded reads as missing, so it is
+     * written again; the rename in install() replaces the identical file, which is harmless.
+     */
+    public boolean contains(String hash) {
+        return objectIndex().contains(ObjectId.fromHex(hash));
+    }
+
+    private ObjectIndex objectIndex() {
+        ObjectIndex known = objectIndex;
+        if (known == null) {
+            synchronized (this) {
+                known = objectIndex;
+                if (known == null) {
+                    loadedStamp = collectedStamp(true);
+                    List<ObjectId> ids = new ArrayList<>();
+                    for (String hash : listLooseObjects()) {
+                        ids.add(ObjectId.fromHex(hash));
+                    }
+                    for (PackFile pack : packs()) {
+                        ids.addAll(pack.ids());
+                    }
+                    known = new ObjectIndex(ids);
+                    objectIndex = known;
+                }
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Drops what this process knows about stored objects if a collection in another process
+     * has deleted any since, or the objects directory was deleted and recreated (which takes
+     * the stamp with it). One stat, meant to be called once at the start of a snapshot or
+     * stage rather than per object.
+     */
+    public void revalidate() {
+        if (objectIndex != null && !Objects.equals(collectedStamp(false), loadedStamp)) {
+            synchronized (this) {
+                objectIndex = null;
+            }
+        }
+    }
+
+    /** Forgets an object that has just been deleted from this store. */
+    void forget(String hash) {
+        ObjectIndex known = objectIndex;
+        if (known != null) {
+            known.remove(ObjectId.fromHex(hash));
+        }
+    }
+
+    /** Tells other processes that objects were deleted, so they reload what they know. */
+    void markCollected() throws IOException {
+        File stamp = collectedStampFile();
+        long previous = stamp.lastModified();
+        if (!stamp.exists()) {
+            Files.createFile(stamp.toPath());
+        }
+        // Always moves forward, even for two collections within the timestamp resolution
+        stamp.setLastModified(Math.max(System.currentTimeMillis(), previous + 1000));
+        if (objectIndex != null) {
+            loadedStamp = collectedStamp(false);
+        }
+    }
+
+    private File collectedStampFile() {
+        return new File(objectsDir, "collected");
+    }
+
+    /**
+     * The collected stamp's file key and last modification, or null if there is none. When
+     * loading, a missing stamp is created so that losing it later can be noticed.
+     */
+    private Object collectedStamp(boolean create) {
+        Path stamp = collectedStampFile().toPath();
+        try {
+            if (create && objectsDir.isDirectory()) {
+                try {
+                    Files.createFile(stamp);
+                } catch (FileAlreadyExistsException e) {
+                    // Kept from an earlier load or collection
+                }
+            }
+            BasicFileAttributes attrs = Files.readAttributes(stamp, BasicFileAttributes.class);
+            return Arrays.asList(attrs.fileKey(), attrs.lastModifiedTime());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the object's decoded content.
+     * Throws FileNotFoundException if the object is not stored.
+     */
+    public byte[] read(String hash) throws IOException {
+        ObjectId id = ObjectId.fromHex(hash);
+        PackFile pack = findPack(id);
+        if (pack != null) {
+            return pack.read(id);
+        }
+        try (InputStream in = openObject(hash)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /** Streams the object's decoded content without holding it all in memory. */
+    public InputStream openObject(String hash) throws IOException {
+        ObjectId objectId = ObjectId.fromHex(hash);
+        PackFile pack = findPack(objectId);
+        if (pack != null) {
+            return new ByteArrayInputStream(pack.read(objectId));
+        }
+        File file = locate(hash);
+        if (file == null) {
+            throw new FileNotFoundException("Object not found: " + hash);
+        }
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            in.mark(HEADER_SIZE);
+            byte[] header = in.readNBytes(HEADER_SIZE);
+            if (header.length == HEADER_SIZE && Arrays.equals(header, 0, HEADER_MAGIC.length, HEADER_MAGIC, 0, HEADER_MAGIC.length)) {
+                int id = header[HEADER_MAGIC.length] & 0xff;
+                if (id == CHUNKED) {
+                    List<String> chunks = readManifest(in);
+                    in.close();
+                    return openChunks(chunks);
+                }
+                return ObjectCodecs.byId(id).decode(in);
+            }
+            in.reset();
+            return isGzip(header) ? new GZIPInputStream(in) : in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /** Streams the chunks one after another, opening each only when the previous one is used up. */
+    private InputStream openChunks(List<String> chunks) {
+        Iterator<String> remaining = chunks.iterator();
+        return new InputStream() {
+            private InputStream current = InputStream.nullInputStream();
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int read;
+                while ((read = current.read(b, off, len)) < 0) {
+                    current.close();
+                    if (!remaining.hasNext()) {
+                        current = InputStream.nullInputStream();
+                        return -1;
+                    }
+                    current = openObject(remaining.next());
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                current.close();
+            }
+        };
+    }
+
+    /** True if the object is stored as a manifest of chunks. */
+    public boolean isChunked(String hash) throws IOException {
+        File file = locate(hash);
+        if (file == null) {
+            return false;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] header = in.readNBytes(HEADER_SIZE);
+            return header.length == HEADER_SIZE
+                && Arrays.equals(header, 0, HEADER_MAGIC.length, HEADER_MAGIC, 0, HEADER_MAGIC.length)
+                && (header[HEADER_MAGIC.length] & 0xff) == CHUNKED;
+        }
+    }
+
+    /** Hashes of the chunks of a chunked object, in order. */
+    public List<String> chunksOf(String hash) throws IOException {
+        File file = locate(hash);
+        if (file == null) {
+            throw new FileNotFoundException("Object not found: " + hash);
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            in.skipNBytes(HEADER_SIZE);
+            return readManifest(in);
+        }
+    }
+
+    private static List<String> readManifest(InputStream in) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                chunks.add(line.substring(0, line.indexOf(' ')));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Stores an object as a manifest of chunks that are already stored. Returns false if the
+     * object was already stored, chunked or not.
+     */
+    public boolean writeChunked(String hash, List<String> chunkHashes, List<Integer> chunkLengths) throws IOException {
+        if (contains(hash) && freshen(hash)) {
+            Instrumentation.listener().objectDeduplicated(hash);
+            return false;
+        }
+        File tempFile = createTempFile("manifest");
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                out.write(HEADER_MAGIC);
+                out.write(CHUNKED);
+                for (int i = 0; i < chunkHashes.size(); i++) {
+                    out.write((chunkHashes.get(i) + " " + chunkLengths.get(i) + "\n").getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+            return install(tempFile, hash);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /** Writes the object header for a codec to out and returns a stream that encodes into it. */
+    public static OutputStream encode(OutputStream out, ObjectCodec codec) throws IOException {
+        out.write(HEADER_MAGIC);
+        out.write(codec.id());
+        return codec.encode(out);
+    }
+
+    private static boolean isGzip(byte[] data) {
+        // Loose commits are plain text starting with "tree:", so they never match the gzip header
+        return data.length >= 3 && data[0] == (byte) 0x1f && data[1] == (byte) 0x8b && data[2] == 8;
+    }
+
+    private PackFile findPack(ObjectId id) {
+        for (PackFile pack : packs()) {
+            if (pack.contains(id)) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    /** The open packs, reopening the pack directory if another writer has changed it. */
+    private List<PackFile> packs() {
+        long modified = packDir.lastModified();
+        if (modified != packDirModified) {
+            synchronized (this) {
+                if (modified != packDirModified) {
+                    reloadPacks();
+                    packDirModified = modified;
+                }
+            }
+        }
+        return packs;
+    }
+
+    private void reloadPacks() {
+        Set<String> open = new HashSet<>();
+        for (PackFile pack : packs) {
+            if (pack.getPackFile().exists()) {
+                open.add(pack.getPackFile().getName());
+            } else {
+                // Only a deleted git directory takes packs with it
+                packs.remove(pack);
+                closePack(pack);
+            }
+        }
+        File[] indexFiles = packDir.listFiles((dir, name) -> name.endsWith(".idx"));
+        if (indexFiles == null) {
+            return;
+        }
+        for (File indexFile : indexFiles) {
+            String packName = indexFile.getName().replace(".idx", ".pack");
+            if (!open.contains(packName)) {
+                try {
+                    packs.add(PackFile.open(indexFile));
+                } catch (IOException e) {
+                    System.err.println("Skipping unreadable pack " + indexFile + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void closePack(PackFile pack) {
+        try {
+            pack.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close pack " + pack.getPackFile() + ": " + e.getMessage());
+        }
+    }
+
+    /** Hashes of every loose object, in either layout. */
+    public List<String> listLooseObjects() {
+        List<String> hashes = new ArrayList<>();
+        File[] files = objectsDir.listFiles();
+        if (files == null) {
+            return hashes;
+        }
+        for (File file : files) {
+            if (file.isFile() && isObjectName(file.getName())) {
+                hashes.add(file.getName());
+            } else if (file.isDirectory() && file.getName().length() == 2) {
+                String[] names = file.list();
+                if (names != null) {
+                    for (String name : names) {
+                        if (isObjectName(file.getName() + name)) {
+                            hashes.add(file.getName() + name);
+                        }
+                    }
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Moves all loose objects (up to a size limit) into one new pack, then deletes the
+     * loose copies. Returns the number of objects packed.
+     */
+    public synchronized int repack() throws IOException {
+        List<String> loose = new ArrayList<>();
+        for (String hash : listLooseObjects()) {
+            // A manifest's content is as large as the whole file, its chunks get packed instead
+            if (locate(hash).length() <= PackFile.MAX_PACKED_SIZE && !isChunked(hash)) {
+                loose.add(hash);
+            }
+        }
+        if (loose.isEmpty()) {
+            return 0;
+        }
+        File indexFile = PackFile.write(loose, this, packDir);
+        packs.add(PackFile.open(indexFile));
+        packDirModified = packDir.lastModified();
+        for (String hash : loose) {
+            File file = locate(hash);
+            if (file != null) {
+                Files.delete(file.toPath());
+            }
+        }
+        return loose.size();
+    }
+
+    /** A temp file on the same filesystem as the objects, so it can be installed by rename. */
+    public File createTempFile(String prefix) throws IOException {
+        if (!objectsDir.exists() && !objectsDir.mkdirs()) {
+            throw new IOException("Failed to create objects directory.");
+        }
+        return File.createTempFile(prefix, ".tmp", objectsDir);
+    }
+
+    /**
+     * Called instead of writing an object that is already stored. A loose copy gets a new
+     * modification time, as git freshens objects it reuses, so the collector's grace period
+     * protects it from a concurrent sweep as if it had just been written. Packed objects are
+     * never collected and need nothing. Returns false if the object turns out to be gone,
+     * collected since the index saw it, in which case the caller writes it again.
+     */
+    private boolean freshen(String hash) {
+        File file = locate(hash);
+        if (file != null) {
+            // A read-only store can't be collected either, so an object that exists is enough
+            return file.setLastModified(System.currentTimeMillis()) || file.exists();
+        }
+        if (findPack(ObjectId.fromHex(hash)) != null) {
+            return true;
+        }
+        forget(hash);
+        return false;
+    }
+
+    /**
+     * Moves a fully written temp file into place under its hash. Returns false, and drops the
+     * temp file, if the object was already stored.
+     */
+    public boolean install(File tempFile, String hash) throws IOException {
+        long start = System.nanoTime();
+        ReentrantLock lock = objectLock(hash);
+        lock.lock();
+        try {
+            if (contains(hash) && freshen(hash)) {
+                Files.deleteIfExists(tempFile.toPath());
+                Instrumentation.listener().objectDeduplicated(hash);
+                return false;
+            }
+            File target = pathFor(hash);
+            File fanOutDir = target.getParentFile();
+            if (!fanOutDir.exists() && !fanOutDir.mkdirs() && !fanOutDir.exists()) {
+                throw new IOException("Failed to create object directory: " + fanOutDir);
+            }
+            Durability durability = Durability.mode();
+            if (durability == Durability.STRICT) {
+                Durability.syncFile(tempFile);
+            }
+            Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (durability == Durability.STRICT) {
+                Durability.syncDirectory(fanOutDir);
+                Durability.syncDirectory(objectsDir);
+            } else if (durability == Durability.BATCHED) {
+                unsynced.add(target);
+            }
+            ObjectIndex known = objectIndex;
+            if (known != null) {
+                known.add(ObjectId.fromHex(hash));
+            }
+            Instrumentation.listener().objectWritten(hash);
+            return true;
+        } finally {
+            lock.unlock();
+            Instrumentation.listener().phase(RepositoryListener.Phase.WRITE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Makes every object installed since the last barrier durable: their content first, then
+     * the directories they were renamed into. Does nothing unless the mode is BATCHED.
+     * Callers that arrive while a barrier is running wait for it and then sync only what was
+     * written after it started, so concurrent commits share the cost.
+     */
+    public void sync() throws IOException {
+        synchronized (syncLock) {
+            if (unsynced.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            List<File> files = new ArrayList<>(unsynced);
+            Set<File> dirs = new HashSet<>();
+            for (File file : files) {
+                try {
+                    Durability.syncFile(file);
+                } catch (NoSuchFileException e) {
+                    // Packed or collected since it was written
+                }
+                dirs.add(file.getParentFile());
+            }
+            for (File dir : dirs) {
+                Durability.syncDirectory(dir);
+            }
+            // New fan-out directories are entries of the objects directory itself
+            Durability.syncDirectory(objectsDir);
+            files.forEach(unsynced::remove);
+            Instrumentation.listener().phase(RepositoryListener.Phase.SYNC, System.nanoTime() - start);
+        }
+    }
+
+    /** Writes an object whose content is already in memory. Returns false if it was already stored. */
+    public boolean write(String hash, byte[] content) throws IOException {
+        // Held while encoding so a second writer of the same object waits and then finds it stored
+        ReentrantLock lock = objectLock(hash);
+        lock.lock();
+        try {
+            if (contains(hash) && freshen(hash)) {
+                Instrumentation.listener().objectDeduplicated(hash);
+                return false;
+            }
+            File tempFile = createTempFile("object");
+            try {
+                long start = System.nanoTime();
+                try (OutputStream out = encode(new BufferedOutputStream(new FileOutputStream(tempFile)),
+                        ObjectCodecs.choose(content, content.length))) {
+                    out.write(content);
+                }
+                Instrumentation.listener().phase(RepositoryListener.Phase.COMPRESS, System.nanoTime() - start);
+                Instrumentation.listener().bytesCompressed(tempFile.length());
+                return install(tempFile, hash);
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock objectLock(String hash) {
+        return RepositoryLocks.forGitDir(objectsDir.getParentFile()).objectLock(hash);
+    }
+
+    /**
+     * Moves every object stored directly under git/objects into its fan-out directory.
+     * Each object is moved with a single rename and objects already in place are skipped,
+     * so an interrupted migration is finished by running it again. Returns the number moved.
+     */
+    public int migrateToFanOut() throws IOException {
+        File[] files = objectsDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int moved = 0;
+        for (File file : files) {
+            if (!file.isFile() || !isObjectName(file.getName())) {
+                continue;
+            }
+            File target = pathFor(file.getName());
+            if (target.exists()) {
+                // Already copied by an earlier run, only the flat copy is left over
+                Files.delete(file.toPath());
+                continue;
+            }
+            target.getParentFile().mkdirs();
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            moved++;
+        }
+        return moved;
+    }
+
+    private static boolean isObjectName(String name) {
+        if (name.length() != 40) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
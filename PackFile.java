@@ -0,0 +1,452 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A pack holds many objects in one file, with a sorted hash to offset index beside it.
+ *
+ * <pre>
+ * pack-&lt;sha&gt;.pack  "GPAK", version (int), object count (int), entries, SHA-1 trailer
+ *   entry           kind (byte), content length (varint), [base entry offset (varint), for deltas],
+ *                   payload length (varint), deflated payload
+ * pack-&lt;sha&gt;.idx   "GPIX", version (int), object count (int), fan-out table (256 ints),
+ *                   sorted hashes (20 bytes each), entry offsets (long each), pack SHA-1
+ * </pre>
+ *
+ * The payload of a full entry is the object content; a delta entry holds copy/insert
+ * instructions against the content of its base entry, which is always a full entry.
+ */
+public class PackFile {
+    private static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    private static final byte[] INDEX_MAGIC = {'G', 'P', 'I', 'X'};
+    private static final int VERSION = 1;
+    private static final int HASH_SIZE = 20;
+    private static final int INDEX_HEADER_SIZE = 12 + 256 * 4;
+
+    private static final int KIND_FULL = 1;
+    private static final int KIND_DELTA = 2;
+
+    private static final int DELTA_COPY = 1;
+    private static final int DELTA_INSERT = 2;
+    private static final int DELTA_BLOCK = 16;
+    // How many recently packed objects of similar size are tried as a delta base
+    private static final int DELTA_WINDOW = 10;
+    // Objects larger than this are packed whole, since delta search is quadratic in the window
+    private static final int MAX_DELTA_SIZE = 8 * 1024 * 1024;
+    // Objects larger than this stay loose so repack never holds a huge object in memory
+    static final long MAX_PACKED_SIZE = 64L * 1024 * 1024;
+
+    private final File packFile;
+    private final ByteBuffer index;
+    private final FileChannel channel;
+    private final ByteBuffer mappedPack;  // null when the pack is too large to map in one buffer
+    private final int objectCount;
+
+    private PackFile(File indexFile, File packFile) throws IOException {
+        this.packFile = packFile;
+        try (FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            this.index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+        }
+        byte[] magic = new byte[INDEX_MAGIC.length];
+        index.get(0, magic);
+        if (!Arrays.equals(magic, INDEX_MAGIC) || index.getInt(4) != VERSION) {
+            throw new IOException("Not a supported pack index: " + indexFile);
+        }
+        this.objectCount = index.getInt(8);
+        this.channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+        this.mappedPack = channel.size() <= Integer.MAX_VALUE
+            ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+            : null;
+    }
+
+    public static PackFile open(File indexFile) throws IOException {
+        String name = indexFile.getName();
+        File packFile = new File(indexFile.getParentFile(), name.substring(0, name.length() - ".idx".length()) + ".pack");
+        return new PackFile(indexFile, packFile);
+    }
+
+    public File getPackFile() {
+        return packFile;
+    }
+
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    public boolean contains(ObjectId id) {
+        return findOffset(id) >= 0;
+    }
+
+    /** All object ids in this pack, in sorted order. */
+    public List<ObjectId> ids() {
+        List<ObjectId> ids = new ArrayList<>(objectCount);
+        ByteBuffer hashes = index.duplicate().position(INDEX_HEADER_SIZE);
+        for (int i = 0; i < objectCount; i++) {
+            ids.add(ObjectId.fromRaw(hashes));
+        }
+        return ids;
+    }
+
+    /** Returns the object's content, or null if it is not in this pack. */
+    public byte[] read(ObjectId id) throws IOException {
+        long offset = findOffset(id);
+        return offset < 0 ? null : readEntry(offset);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long findOffset(ObjectId id) {
+        byte[] hash = new byte[HASH_SIZE];
+        id.copyRawTo(hash, 0);
+        // The fan-out table narrows the search to hashes sharing the first byte
+        int first = hash[0] & 0xff;
+        int low = first == 0 ? 0 : index.getInt(12 + (first - 1) * 4);
+        int high = index.getInt(12 + first * 4) - 1;
+        byte[] candidate = new byte[HASH_SIZE];
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            index.get(INDEX_HEADER_SIZE + mid * HASH_SIZE, candidate);
+            int order = Arrays.compareUnsigned(candidate, hash);
+            if (order == 0) {
+                return index.getLong(INDEX_HEADER_SIZE + objectCount * HASH_SIZE + mid * 8);
+            } else if (order < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] readEntry(long offset) throws IOException {
+        ByteBuffer header = slice(offset, (int) Math.min(32, channel.size() - offset));
+        int kind = header.get();
+        int contentLength = (int) readVarLong(header);
+        long baseOffset = kind == KIND_DELTA ? readVarLong(header) : -1;
+        int payloadLength = (int) readVarLong(header);
+        byte[] payload = new byte[payloadLength];
+        slice(offset + header.position(), payloadLength).get(payload);
+
+        if (kind == KIND_FULL) {
+            return inflate(payload, contentLength);
+        } else if (kind == KIND_DELTA) {
+            byte[] base = readEntry(baseOffset);
+            return applyDelta(base, ByteBuffer.wrap(inflate(payload, -1)), contentLength);
+        }
+        throw new IOException("Corrupt pack entry at offset " + offset + " in " + packFile);
+    }
+
+    private ByteBuffer slice(long offset, int length) throws IOException {
+        if (mappedPack != null) {
+            return mappedPack.duplicate().position((int) offset).limit((int) offset + length).slice();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of pack " + packFile);
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Writes the given loose objects into a new pack and index in packDir, trying each object
+     * as a delta against recent objects of similar size. Returns the new pack's index file.
+     */
+    public static File write(List<String> hashes, ObjectStore store, File packDir) throws IOException {
+        if (!packDir.exists() && !packDir.mkdirs()) {
+            throw new IOException("Failed to create pack directory: " + packDir);
+        }
+        // Similar objects tend to have similar sizes, so neighbours in size order make good delta bases
+        List<String> ordered = new ArrayList<>(hashes);
+        Map<String, Long> sizes = new HashMap<>();
+        for (String hash : ordered) {
+            sizes.put(hash, store.locate(hash).length());
+        }
+        ordered.sort(Comparator.comparing(sizes::get));
+
+        File tempPack = File.createTempFile("pack", ".tmp", packDir);
+        File tempIndex = File.createTempFile("pack", ".tmp", packDir);
+        try {
+            MessageDigest digest = ObjectId.newDigest();
+            SortedMap<ObjectId, Long> offsets = new TreeMap<>();
+            try (FileOutputStream fileOut = new FileOutputStream(tempPack)) {
+                CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fileOut));
+                DataOutputStream out = new DataOutputStream(new DigestOutputStream(counter, digest));
+                out.write(PACK_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(ordered.size());
+
+                Deque<Object[]> window = new ArrayDeque<>();  // {content, offset} of recent full entries
+                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                try {
+                    for (String hash : ordered) {
+                        out.flush();
+                        long offset = counter.count;
+                        offsets.put(ObjectId.fromHex(hash), offset);
+                        byte[] content = store.read(hash);
+
+                        byte[] bestDelta = null;
+                        long bestBase = -1;
+                        for (Object[] candidate : content.length <= MAX_DELTA_SIZE ? window : List.<Object[]>of()) {
+                            byte[] delta = encodeDelta((byte[]) candidate[0], content);
+                            if (delta.length < content.length / 2 && (bestDelta == null || delta.length < bestDelta.length)) {
+                                bestDelta = delta;
+                                bestBase = (Long) candidate[1];
+                            }
+                        }
+
+                        if (bestDelta != null) {
+                            out.writeByte(KIND_DELTA);
+                            writeVarLong(out, content.length);
+                            writeVarLong(out, bestBase);
+                            writePayload(out, deflate(deflater, bestDelta));
+                        } else {
+                            out.writeByte(KIND_FULL);
+                            writeVarLong(out, content.length);
+                            writePayload(out, deflate(deflater, content));
+                            window.addFirst(new Object[] {content, offset});
+                            if (window.size() > DELTA_WINDOW) {
+                                window.removeLast();
+                            }
+                        }
+                    }
+                } finally {
+                    deflater.end();
+                }
+                out.flush();
+                fileOut.write(digest.digest());
+            }
+            byte[] packChecksum = trailer(tempPack);
+            writeIndex(offsets, packChecksum, tempIndex);
+
+            // The loose copies are deleted once this returns, so the pack has to be on disk first
+            boolean sync = Durability.mode() != Durability.NONE;
+            if (sync) {
+                Durability.syncFile(tempPack);
+                Durability.syncFile(tempIndex);
+            }
+
+            // The index is renamed last, since it is what makes the pack visible to readers
+            String name = "pack-" + ObjectId.fromRaw(packChecksum).name();
+            File packFile = new File(packDir, name + ".pack");
+            File indexFile = new File(packDir, name + ".idx");
+            Files.move(tempPack.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tempIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (sync) {
+                Durability.syncDirectory(packDir);
+            }
+            return indexFile;
+        } finally {
+            Files.deleteIfExists(tempPack.toPath());
+            Files.deleteIfExists(tempIndex.toPath());
+        }
+    }
+
+    /** Writes the index for offsets, which must be sorted by id. */
+    private static void writeIndex(SortedMap<ObjectId, Long> offsets, byte[] packChecksum, File file) throws IOException {
+        // ObjectId orders the same way as the raw bytes, so the map is already in index order
+        byte[] hash = new byte[HASH_SIZE];
+        int[] fanOut = new int[256];
+        for (ObjectId id : offsets.keySet()) {
+            id.copyRawTo(hash, 0);
+            fanOut[hash[0] & 0xff]++;
+        }
+        for (int i = 1; i < 256; i++) {
+            fanOut[i] += fanOut[i - 1];
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.write(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(offsets.size());
+            for (int count : fanOut) {
+                out.writeInt(count);
+            }
+            for (ObjectId id : offsets.keySet()) {
+                id.copyRawTo(hash, 0);
+                out.write(hash);
+            }
+            for (long offset : offsets.values()) {
+                out.writeLong(offset);
+            }
+            out.write(packChecksum);
+        }
+    }
+
+    /**
+     * Encodes target as copy/insert instructions against base. Base is indexed in fixed
+     * blocks, and each match found in target is extended forward as far as it goes.
+     */
+    static byte[] encodeDelta(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + DELTA_BLOCK <= base.length; i += DELTA_BLOCK) {
+            blocks.putIfAbsent(blockHash(base, i), i);
+        }
+
+        int insertStart = 0;
+        int i = 0;
+        while (i + DELTA_BLOCK <= target.length) {
+            Integer match = blocks.get(blockHash(target, i));
+            if (match == null || !Arrays.equals(base, match, match + DELTA_BLOCK, target, i, i + DELTA_BLOCK)) {
+                i++;
+                continue;
+            }
+            int length = DELTA_BLOCK;
+            while (match + length < base.length && i + length < target.length && base[match + length] == target[i + length]) {
+                length++;
+            }
+            writeInsert(out, target, insertStart, i);
+            out.write(DELTA_COPY);
+            writeVarLong(out, match);
+            writeVarLong(out, length);
+            i += length;
+            insertStart = i;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    private static int blockHash(byte[] data, int offset) {
+        int hash = 1;
+        for (int i = offset; i < offset + DELTA_BLOCK; i++) {
+            hash = 31 * hash + data[i];
+        }
+        return hash;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (to > from) {
+            out.write(DELTA_INSERT);
+            writeVarLong(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    static byte[] applyDelta(byte[] base, ByteBuffer delta, int contentLength) throws IOException {
+        byte[] content = new byte[contentLength];
+        int position = 0;
+        while (delta.hasRemaining()) {
+            int op = delta.get();
+            if (op == DELTA_COPY) {
+                int from = (int) readVarLong(delta);
+                int length = (int) readVarLong(delta);
+                System.arraycopy(base, from, content, position, length);
+                position += length;
+            } else if (op == DELTA_INSERT) {
+                int length = (int) readVarLong(delta);
+                delta.get(content, position, length);
+                position += length;
+            } else {
+                throw new IOException("Corrupt delta instruction: " + op);
+            }
+        }
+        if (position != contentLength) {
+            throw new IOException("Delta produced " + position + " bytes, expected " + contentLength);
+        }
+        return content;
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data, int expectedLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(expectedLength > 0 ? expectedLength : data.length * 2);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                // An empty object's stream finishes without producing any output
+                if (length == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated pack entry");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt pack entry", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writePayload(DataOutputStream out, byte[] payload) throws IOException {
+        writeVarLong(out, payload.length);
+        out.write(payload);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) {
+        try {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static byte[] trailer(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] checksum = new byte[HASH_SIZE];
+            raf.seek(raf.length() - HASH_SIZE);
+            raf.readFully(checksum);
+            return checksum;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
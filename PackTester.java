@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PackTester {
+    public static void main(String[] args) {
+        try {
+            Path workingDir = Files.createTempDirectory("pack-test");
+            Path repo = workingDir.resolve("repo");
+            Files.createDirectories(repo.resolve("empty"));
+            Files.write(repo.resolve("empty.txt"), new byte[0]);
+            Files.write(repo.resolve("small.txt"), "Content of a small file".getBytes());
+            Files.write(repo.resolve("similar.txt"), "Content of a small file, with a bit more".getBytes());
+            new Git().initRepo(repo.toString());
+            testRoundTrip(repo.toString());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void testRoundTrip(String repoPath) throws IOException, NoSuchAlgorithmException {
+        Blob blob = new Blob();
+        String rootTree = blob.createRootTree(new java.io.File(repoPath).getParent(), repoPath);
+        ObjectStore store = ObjectStore.open(repoPath);
+        // The empty blob and the empty tree have the same content, and so the same id
+        String empty = Blob.hashContent(new byte[0]).name();
+
+        Map<String, byte[]> before = new LinkedHashMap<>();
+        for (String hash : store.listLooseObjects()) {
+            before.put(hash, store.read(hash));
+        }
+        System.out.println("Loose objects before repack: " + before.size());
+        System.out.println("Empty object is loose: " + before.containsKey(empty));
+
+        int packed = store.repack();
+        System.out.println("Packed " + packed + " objects, " + store.listLooseObjects().size() + " still loose");
+
+        boolean allMatch = true;
+        for (Map.Entry<String, byte[]> entry : before.entrySet()) {
+            if (!Arrays.equals(store.read(entry.getKey()), entry.getValue())) {
+                System.out.println("Verification Failed: " + entry.getKey() + " reads back differently.");
+                allMatch = false;
+            }
+        }
+        if (allMatch) {
+            System.out.println("Verification: every object reads back the same from the pack.");
+        }
+        if (store.read(empty).length == 0) {
+            System.out.println("Verification: the empty blob and tree read back from the pack.");
+        }
+        if (store.read(rootTree).length > 0) {
+            System.out.println("Verification: root tree " + rootTree + " reads back from the pack.");
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Receives what the repository does while staging, snapshotting and committing. Every method
+ * does nothing by default, so a listener only overrides what it needs. Methods are called
+ * from whichever thread did the work and must be thread safe.
+ */
+public interface RepositoryListener {
+    /** Parts of a snapshot or commit that are timed separately. */
+    enum Phase {
+        SCAN,      // listing directories and checking stat data
+        HASH,      // feeding content to SHA-1
+        COMPRESS,  // encoding content with an object codec
+        WRITE,     // installing objects and moving HEAD
+        INDEX,     // writing git/index
+        SYNC       // waiting for written files to reach the disk
+    }
+
+    RepositoryListener NOOP = new RepositoryListener() {
+    };
+
+    default void bytesRead(long bytes) {
+    }
+
+    default void bytesHashed(long bytes) {
+    }
+
+    /** Encoded size of a stored object, including its header. */
+    default void bytesCompressed(long bytes) {
+    }
+
+    default void objectWritten(String hash) {
+    }
+
+    /** An object was not written because it was already stored. */
+    default void objectDeduplicated(String hash) {
+    }
+
+    default void pathDeleted(String path) {
+    }
+
+    default void indexFlushed(int entries) {
+    }
+
+    default void commitCreated(String commitHash) {
+    }
+
+    default void headUpdated(String commitHash) {
+    }
+
+    default void phase(Phase phase, long nanos) {
+    }
+}
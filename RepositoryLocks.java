@@ -0,0 +1,49 @@
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process locks for one repository. Threads queue on these instead of polling the lock
+ * files, which still guard against other processes. Objects are locked by stripes of their
+ * hash, so different objects are written in parallel while two writers of the same object
+ * don't both encode it.
+ */
+public class RepositoryLocks {
+    private static final int OBJECT_STRIPES = 64;
+
+    private static final Map<String, RepositoryLocks> LOCKS = new ConcurrentHashMap<>();
+
+    private final ReentrantLock indexLock = new ReentrantLock();
+    private final ReentrantLock headLock = new ReentrantLock();
+    private final ReentrantLock[] objectLocks = new ReentrantLock[OBJECT_STRIPES];
+
+    private RepositoryLocks() {
+        for (int i = 0; i < OBJECT_STRIPES; i++) {
+            objectLocks[i] = new ReentrantLock();
+        }
+    }
+
+    public static RepositoryLocks forRepo(String repoPath) {
+        return forGitDir(new File(repoPath, "git"));
+    }
+
+    public static RepositoryLocks forGitDir(File gitDir) {
+        return LOCKS.computeIfAbsent(gitDir.getAbsolutePath(), path -> new RepositoryLocks());
+    }
+
+    /** Serializes writing git/index. */
+    public ReentrantLock indexLock() {
+        return indexLock;
+    }
+
+    /** Serializes updating git/HEAD. */
+    public ReentrantLock headLock() {
+        return headLock;
+    }
+
+    public ReentrantLock objectLock(String hash) {
+        // Hashes are uniformly distributed, so the first two hex digits spread them evenly
+        return objectLocks[Integer.parseInt(hash, 0, 2, 16) % OBJECT_STRIPES];
+    }
+}
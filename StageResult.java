@@ -0,0 +1,59 @@
+import java.nio.file.Path;
+
+/** Outcome of staging one file through the bulk staging API. */
+public class StageResult {
+    public enum Status {
+        STAGED,     // content was hashed and stored
+        UNCHANGED,  // stat data matched the index, nothing was read
+        FAILED
+    }
+
+    private final Path path;
+    private final Status status;
+    private final String hash;
+    private final String error;
+
+    private StageResult(Path path, Status status, String hash, String error) {
+        this.path = path;
+        this.status = status;
+        this.hash = hash;
+        this.error = error;
+    }
+
+    public static StageResult staged(Path path, String hash) {
+        return new StageResult(path, Status.STAGED, hash, null);
+    }
+
+    public static StageResult unchanged(Path path, String hash) {
+        return new StageResult(path, Status.UNCHANGED, hash, null);
+    }
+
+    public static StageResult failed(Path path, String error) {
+        return new StageResult(path, Status.FAILED, null, error);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return status != Status.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return status + " " + path + (hash != null ? " " + hash : "") + (error != null ? " (" + error + ")" : "");
+    }
+}
@@ -42,8 +42,9 @@ public class TestGitInterface {
         File indexFile = new File(REPO_PATH, "git/index");
         if (indexFile.exists()) {
             try {
-                String indexContent = new String(Files.readAllBytes(indexFile.toPath()));
-                if (indexContent.contains(fileName)) {
+                boolean staged = IndexSession.open(REPO_PATH).entries().stream()
+                    .anyMatch(entry -> !entry.deleted && entry.path.endsWith(fileName));
+                if (staged) {
                     System.out.println("Verification: " + fileName + " is in the index.");
                 } else {
                     System.out.println("Verification Failed: " + fileName + " is not in the index.");
@@ -71,8 +72,7 @@ public class TestGitInterface {
     }
     
     private static void verifyCommit(String commitHash) {
-        File commitFile = new File(REPO_PATH, "git/objects/" + commitHash);
-        if (commitFile.exists()) {
+        if (ObjectStore.open(REPO_PATH).contains(commitHash)) {
             System.out.println("Verification: Commit file exists in objects directory.");
         } else {
             System.out.println("Verification Failed: Commit file does not exist in objects directory.");
@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Walks two trees side by side and yields the files that differ. Subtrees with the same hash
+ * on both sides are skipped without being read, so the cost follows the size of the change.
+ *
+ * Modified files are yielded as they are found. Added and deleted files are held back for a
+ * while so a deletion and an addition of identical content can be reported as a rename, but
+ * never more than the rename window at a time: past it, the oldest held file is yielded as a
+ * plain addition or deletion. So memory stays bounded however large the change, at the cost
+ * of missing renames whose two halves are further apart in the walk than the window. A window
+ * of 0 turns rename detection off and yields every file as it is found.
+ *
+ * Read errors are thrown as UncheckedIOException from hasNext and next.
+ */
+public class TreeDiff implements Iterator<DiffEntry> {
+    /** Where the trees on one side of the diff are read from. */
+    public interface TreeSource {
+        List<TreeEntry> readTree(String hash) throws IOException;
+    }
+
+    /** A pair of directories being compared, with the position reached in each. */
+    private static class Frame {
+        final List<TreeEntry> oldEntries;
+        final List<TreeEntry> newEntries;
+        int oldIndex;
+        int newIndex;
+
+        Frame(List<TreeEntry> oldEntries, List<TreeEntry> newEntries) {
+            this.oldEntries = oldEntries;
+            this.newEntries = newEntries;
+        }
+    }
+
+    /** An added or deleted file waiting for the other half of a rename. */
+    private static class Held {
+        final TreeEntry entry;
+        final boolean added;
+
+        Held(TreeEntry entry, boolean added) {
+            this.entry = entry;
+            this.added = added;
+        }
+    }
+
+    public static final int DEFAULT_RENAME_WINDOW = 1000;
+
+    private final TreeSource oldSource;
+    private final TreeSource newSource;
+    private final int renameWindow;
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private final Deque<DiffEntry> ready = new ArrayDeque<>();
+    // Oldest first; Held has identity equality, so this is also the lookup for removal
+    private final Set<Held> held = new LinkedHashSet<>();
+    private final Map<String, Deque<Held>> heldAdded = new HashMap<>();
+    private final Map<String, Deque<Held>> heldDeleted = new HashMap<>();
+    private DiffEntry next;
+
+    /** Either tree hash may be null for an empty tree. */
+    public TreeDiff(TreeSource oldSource, String oldTree, TreeSource newSource, String newTree) throws IOException {
+        this(oldSource, oldTree, newSource, newTree, DEFAULT_RENAME_WINDOW);
+    }
+
+    /** Holds at most renameWindow added and deleted files while pairing renames, none if 0. */
+    public TreeDiff(TreeSource oldSource, String oldTree, TreeSource newSource, String newTree, int renameWindow)
+            throws IOException {
+        this.oldSource = oldSource;
+        this.newSource = newSource;
+        this.renameWindow = renameWindow;
+        if (oldTree == null || !oldTree.equals(newTree)) {
+            frames.push(new Frame(read(oldSource, oldTree), read(newSource, newTree)));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public DiffEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DiffEntry entry = next;
+        next = null;
+        return entry;
+    }
+
+    private DiffEntry advance() throws IOException {
+        while (ready.isEmpty() && !frames.isEmpty()) {
+            Frame frame = frames.peek();
+            TreeEntry oldEntry = frame.oldIndex < frame.oldEntries.size() ? frame.oldEntries.get(frame.oldIndex) : null;
+            TreeEntry newEntry = frame.newIndex < frame.newEntries.size() ? frame.newEntries.get(frame.newIndex) : null;
+            if (oldEntry == null && newEntry == null) {
+                frames.pop();
+                continue;
+            }
+            // Both sides are sorted by name within the directory, so merge them by path
+            int order = oldEntry == null ? 1 : newEntry == null ? -1 : oldEntry.getPath().compareTo(newEntry.getPath());
+            if (order < 0) {
+                frame.oldIndex++;
+                removed(oldEntry);
+            } else if (order > 0) {
+                frame.newIndex++;
+                added(newEntry);
+            } else {
+                frame.oldIndex++;
+                frame.newIndex++;
+                if (oldEntry.getType().equals(newEntry.getType()) && oldEntry.getHash().equals(newEntry.getHash())) {
+                    continue;
+                }
+                if (oldEntry.isTree() && newEntry.isTree()) {
+                    frames.push(new Frame(read(oldSource, oldEntry.getHash()), read(newSource, newEntry.getHash())));
+                } else if (!oldEntry.isTree() && !newEntry.isTree()) {
+                    return DiffEntry.modified(oldEntry, newEntry);
+                } else {
+                    removed(oldEntry);
+                    added(newEntry);
+                }
+            }
+        }
+
+        if (ready.isEmpty() && !held.isEmpty()) {
+            // The walk is done, so nothing still held will find its other half
+            while (!held.isEmpty()) {
+                release(held.iterator().next());
+            }
+        }
+        return ready.poll();
+    }
+
+    private void removed(TreeEntry entry) throws IOException {
+        if (entry.isTree()) {
+            frames.push(new Frame(read(oldSource, entry.getHash()), Collections.emptyList()));
+        } else {
+            hold(entry, false);
+        }
+    }
+
+    private void added(TreeEntry entry) throws IOException {
+        if (entry.isTree()) {
+            frames.push(new Frame(Collections.emptyList(), read(newSource, entry.getHash())));
+        } else {
+            hold(entry, true);
+        }
+    }
+
+    /** Pairs a file with a held one of the other kind and the same content, or holds it. */
+    private void hold(TreeEntry entry, boolean added) {
+        if (renameWindow <= 0) {
+            ready.add(added ? DiffEntry.added(entry) : DiffEntry.deleted(entry));
+            return;
+        }
+        Map<String, Deque<Held>> partners = added ? heldDeleted : heldAdded;
+        Deque<Held> candidates = partners.get(entry.getHash());
+        if (candidates != null) {
+            Held partner = candidates.poll();
+            if (candidates.isEmpty()) {
+                partners.remove(entry.getHash());
+            }
+            held.remove(partner);
+            ready.add(added ? DiffEntry.renamed(partner.entry, entry) : DiffEntry.renamed(entry, partner.entry));
+            return;
+        }
+        Held waiting = new Held(entry, added);
+        held.add(waiting);
+        (added ? heldAdded : heldDeleted).computeIfAbsent(entry.getHash(), hash -> new ArrayDeque<>()).add(waiting);
+        if (held.size() > renameWindow) {
+            release(held.iterator().next());
+        }
+    }
+
+    /** Gives up on pairing a held file and yields it as a plain addition or deletion. */
+    private void release(Held waiting) {
+        held.remove(waiting);
+        Map<String, Deque<Held>> sameKind = waiting.added ? heldAdded : heldDeleted;
+        Deque<Held> sameContent = sameKind.get(waiting.entry.getHash());
+        sameContent.remove(waiting);
+        if (sameContent.isEmpty()) {
+            sameKind.remove(waiting.entry.getHash());
+        }
+        ready.add(waiting.added ? DiffEntry.added(waiting.entry) : DiffEntry.deleted(waiting.entry));
+    }
+
+    private static List<TreeEntry> read(TreeSource source, String hash) throws IOException {
+        return hash == null ? Collections.emptyList() : source.readTree(hash);
+    }
+}
@@ -0,0 +1,33 @@
+/** One line of a tree object: a blob or subtree with its full path relative to the working directory. */
+public class TreeEntry {
+    private final String type;  // either a "blob" or "tree"
+    private final String hash;
+    private final String path;
+
+    public TreeEntry(String type, String hash, String path) {
+        this.type = type;
+        this.hash = hash;
+        this.path = path;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isTree() {
+        return type.equals("tree");
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + hash + " " + path;
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Trees of the working directory as a snapshot would build them, held in memory so the working
+ * directory can be compared with a commit without writing any objects. Files whose stat data
+ * matches the index are not read. Given the dirty paths from a running watcher, directories
+ * with nothing dirty below them use the tree recorded in the index and are not listed.
+ */
+public class WorkingTree implements TreeDiff.TreeSource {
+    private final Map<String, List<TreeEntry>> trees = new HashMap<>();
+    private final IndexSession index;
+    private final ObjectDatabase database;
+    private final DirtyPaths changes;
+    private final String rootHash;
+
+    private WorkingTree(String repoPath, DirtyPaths changes) throws IOException, NoSuchAlgorithmException {
+        String workingDir = new File(repoPath).getAbsoluteFile().getParent();
+        this.index = IndexSession.open(repoPath);
+        this.database = ObjectDatabase.open(repoPath);
+        this.changes = changes;
+        this.rootHash = scan(Paths.get(workingDir), "", IgnoreRules.load(workingDir));
+    }
+
+    public static WorkingTree scan(String repoPath, DirtyPaths changes) throws IOException, NoSuchAlgorithmException {
+        return new WorkingTree(repoPath, changes);
+    }
+
+    public String getRootHash() {
+        return rootHash;
+    }
+
+    @Override
+    public List<TreeEntry> readTree(String hash) throws IOException {
+        List<TreeEntry> entries = trees.get(hash);
+        // Directories that were not listed are stored trees from an earlier snapshot
+        return entries != null ? entries : database.readTree(hash);
+    }
+
+    private String scan(Path directory, String dirPath, IgnoreRules enclosing) throws IOException, NoSuchAlgorithmException {
+        Blob.IndexEntry cachedTree = index.get(dirPath);
+        if (cachedTree != null && !cachedTree.deleted && cachedTree.type.equals("tree") && !changes.needsVisit(dirPath)) {
+            return cachedTree.id.name();
+        }
+
+        IgnoreRules ignore = enclosing.forDirectory(dirPath);
+        List<TreeEntry> entries = new ArrayList<>();
+        StringBuilder treeContent = new StringBuilder();
+        // Same listing, order and content as Blob.createTree, so unchanged trees get the same hash
+        for (DirectoryScanner.Entry file : DirectoryScanner.list(directory, dirPath, ignore)) {
+            TreeEntry entry;
+            if (file.directory) {
+                entry = new TreeEntry("tree", scan(file.file, file.path, ignore), file.path);
+            } else {
+                Blob.IndexEntry cached = index.get(file.path);
+                boolean clean = changes.isDirty(file.path)
+                    ? Blob.isStatClean(file.stat, cached, index)
+                    : cached != null && !cached.deleted;
+                ObjectId id = clean ? cached.id : Blob.hashFile(file.file.toString());
+                entry = new TreeEntry("blob", id.name(), file.path);
+            }
+            entries.add(entry);
+            treeContent.append(entry.getType()).append(" ").append(entry.getHash()).append(" ")
+                .append(file.path).append("\n");
+        }
+        String hash = Blob.hashContent(treeContent.toString().getBytes()).name();
+        trees.put(hash, entries);
+        return hash;
+    }
+}
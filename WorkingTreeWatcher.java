@@ -0,0 +1,232 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in background watcher that records which paths of a working tree change, so a commit
+ * only has to look at those paths instead of walking the whole tree.
+ *
+ * Every directory of the working tree that isn't ignored is registered with a WatchService and
+ * a daemon thread collects events into a set of dirty paths. Ignored directories are never
+ * descended into; when an ignore file changes, its directory is registered again so anything
+ * it no longer ignores is watched. The set is handed to the next snapshot by
+ * {@link #drain()}. Until the first snapshot, and whenever events are lost (an overflow), the
+ * next snapshot falls back to a full scan. Once a directory could not be registered, every
+ * snapshot does, since that directory's changes would never be seen.
+ *
+ * Before handing out the set, drain writes a cookie file into git/ and waits for its event.
+ * Events arrive in order, so every change made before drain was called is in the set.
+ */
+public class WorkingTreeWatcher implements Closeable {
+    private static final Map<String, WorkingTreeWatcher> WATCHERS = new ConcurrentHashMap<>();
+    private static final long COOKIE_TIMEOUT_MILLIS = 5000;
+
+    private final Path repo;
+    private final Path workingDir;
+    private final Path gitDir;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private final Map<String, CountDownLatch> cookies = new ConcurrentHashMap<>();
+    private final AtomicLong cookieCounter = new AtomicLong();
+    private final Thread thread;
+
+    private Set<String> dirty = new HashSet<>();
+    private boolean fullScan = true;
+    private boolean unwatched;
+
+    private WorkingTreeWatcher(String repoPath) throws IOException {
+        this.repo = Paths.get(repoPath).toAbsolutePath().normalize();
+        this.workingDir = repo.getParent();
+        this.gitDir = repo.resolve("git");
+        this.watchService = workingDir.getFileSystem().newWatchService();
+        // Only cookie files are watched for in git/, the snapshot itself skips it
+        watchedDirs.put(gitDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE), gitDir);
+        try {
+            registerTree(workingDir);
+        } catch (IOException e) {
+            markUnwatched();
+        }
+        this.thread = new Thread(this::processEvents, "working-tree-watcher " + workingDir);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Starts watching the working tree of a repository, or returns the watcher already running for it. */
+    public static synchronized WorkingTreeWatcher start(String repoPath) throws IOException {
+        String key = Paths.get(repoPath).toAbsolutePath().normalize().toString();
+        WorkingTreeWatcher watcher = WATCHERS.get(key);
+        if (watcher == null) {
+            watcher = new WorkingTreeWatcher(repoPath);
+            WATCHERS.put(key, watcher);
+        }
+        return watcher;
+    }
+
+    /** The running watcher for a repository, or null if it is not being watched. */
+    public static WorkingTreeWatcher forRepo(String repoPath) {
+        return WATCHERS.get(Paths.get(repoPath).toAbsolutePath().normalize().toString());
+    }
+
+    /**
+     * Returns the paths changed since the last drain and starts a new set. If the snapshot
+     * using them fails, hand them back with {@link #restore(DirtyPaths)}.
+     */
+    public DirtyPaths drain() throws IOException {
+        boolean synced = awaitCookie();
+        synchronized (this) {
+            DirtyPaths changes = new DirtyPaths(dirty, fullScan || !synced);
+            dirty = new HashSet<>();
+            fullScan = unwatched;
+            return changes;
+        }
+    }
+
+    /** The paths changed since the last drain, leaving them for the next snapshot. */
+    public DirtyPaths peek() throws IOException {
+        boolean synced = awaitCookie();
+        synchronized (this) {
+            return new DirtyPaths(new HashSet<>(dirty), fullScan || !synced);
+        }
+    }
+
+    /** Puts back paths from a drain whose snapshot did not complete. */
+    public synchronized void restore(DirtyPaths changes) {
+        dirty.addAll(changes.getPaths());
+        fullScan |= changes.isFullScan();
+    }
+
+    @Override
+    public void close() throws IOException {
+        WATCHERS.remove(repo.toString(), this);
+        watchService.close();
+        thread.interrupt();
+    }
+
+    private boolean awaitCookie() throws IOException {
+        String name = ".watch-cookie-" + ProcessHandle.current().pid() + "-" + cookieCounter.incrementAndGet();
+        CountDownLatch seen = new CountDownLatch(1);
+        cookies.put(name, seen);
+        Path cookie = gitDir.resolve(name);
+        try {
+            Files.createFile(cookie);
+            return seen.await(COOKIE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            cookies.remove(name);
+            Files.deleteIfExists(cookie);
+        }
+    }
+
+    /** Registers a directory that isn't ignored and every directory below it that isn't either. */
+    private void registerTree(Path root) throws IOException {
+        IgnoreRules ignore = IgnoreRules.load(workingDir.toString());
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(workingDir)) {
+                    String dirPath = relativize(dir);
+                    boolean ignored = dir.equals(root) ? ignore.isExcluded(dirPath, true)
+                        : ignore.forPath(relativize(dir.getParent())).isIgnored(dirPath, true);
+                    if (ignored) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+                try {
+                    WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    watchedDirs.put(key, dir);
+                } catch (IOException e) {
+                    // Out of watches, or no longer there; what lies below is still registered
+                    markUnwatched();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    markFullScan();
+                } else if (dir != null) {
+                    handle(dir, (WatchEvent.Kind<?>) event.kind(), dir.resolve((Path) event.context()));
+                }
+            }
+            if (!key.reset()) {
+                // The directory is gone; its delete event on the parent marks it dirty
+                watchedDirs.remove(key);
+            }
+        }
+    }
+
+    private void handle(Path dir, WatchEvent.Kind<?> kind, Path path) {
+        if (dir.equals(gitDir)) {
+            CountDownLatch cookie = cookies.get(path.getFileName().toString());
+            if (cookie != null) {
+                cookie.countDown();
+            }
+            return;
+        }
+        if (path.getFileName().toString().equals("git")) {
+            return;
+        }
+        if (kind == StandardWatchEventKinds.ENTRY_MODIFY && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            // Changes inside a directory are reported by the directory itself
+            return;
+        }
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            // Anything created before the new directory is registered is covered by marking the whole directory dirty
+            try {
+                registerTree(path);
+            } catch (IOException e) {
+                markUnwatched();
+            }
+        }
+        String relativePath = relativize(path);
+        if (path.getFileName().toString().equals(IgnoreRules.FILE_NAME)) {
+            // New ignore rules can change what counts as tracked anywhere below the directory
+            relativePath = relativize(dir);
+            try {
+                registerTree(dir);
+            } catch (IOException e) {
+                markUnwatched();
+            }
+        }
+        synchronized (this) {
+            dirty.add(relativePath);
+        }
+    }
+
+    private synchronized void markFullScan() {
+        fullScan = true;
+    }
+
+    private synchronized void markUnwatched() {
+        unwatched = true;
+        fullScan = true;
+    }
+
+    private String relativize(Path path) {
+        return workingDir.relativize(path).toString().replace('\\', '/');
+    }
+}
@@ -0,0 +1,147 @@
+import hotpath.HotPaths;
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * The project side of the JMH benchmarks in bench/hotpath. It lives in the default package
+ * with the classes it calls, and is loaded by HotPaths.load().
+ *
+ * The project prints progress to System.out, so creating a fixture sends System.out to a
+ * null stream for the rest of the benchmark fork.
+ */
+public class HotPathFixture implements HotPaths {
+    public HotPathFixture() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @Override
+    public Object hashFile(Path file) throws Exception {
+        return Blob.generateUniqueFileName(file.toString());
+    }
+
+    @Override
+    public Codec codec(String name) {
+        ObjectCodec codec = name.equals("none") ? ObjectCodecs.NONE : ObjectCodecs.deflate(Integer.parseInt(name.substring("deflate-".length())));
+        return content -> {
+            CountingOutputStream counter = new CountingOutputStream();
+            try (OutputStream out = codec.encode(counter)) {
+                out.write(content);
+            }
+            return counter.count;
+        };
+    }
+
+    @Override
+    public Object chooseCodec(byte[] content) {
+        return ObjectCodecs.choose(content, content.length);
+    }
+
+    @Override
+    public Index index(Path dir, int entries) throws IOException {
+        String repoPath = dir.toString();
+        new File(repoPath, "git").mkdirs();
+        IndexSession session = IndexSession.open(repoPath);
+        for (int i = 0; i < entries; i++) {
+            session.put(new Blob.IndexEntry("blob", syntheticHash(i), indexPath(i),
+                new FileStat(i, 1_700_000_000_000_000_000L + i, "(dev=fe00,ino=" + i + ")", 0100644)));
+        }
+        session.flush();
+        String probe = indexPath(entries / 2);
+
+        return new Index() {
+            @Override
+            public void flush() throws IOException {
+                session.markDirty();
+                session.flush();
+            }
+
+            @Override
+            public Object load() throws IOException {
+                return IndexSession.open(repoPath);
+            }
+
+            @Override
+            public Object lookup() throws IOException {
+                return IndexSession.lookup(repoPath, probe);
+            }
+
+            @Override
+            public void stageOne() throws IOException {
+                IndexSession staging = IndexSession.open(repoPath);
+                staging.put(new Blob.IndexEntry("blob", syntheticHash(-1), probe));
+                staging.flush();
+            }
+        };
+    }
+
+    @Override
+    public Snapshot snapshot(Path dir, int depth, int fanout, int filesPerDir, int fileSize, int parallelism) throws Exception {
+        Path repo = dir.resolve("repo");
+        generateTree(repo, depth, fanout, filesPerDir, fileSize);
+        int previous = Blob.SNAPSHOT_PARALLELISM;
+        Blob.SNAPSHOT_PARALLELISM = parallelism;
+
+        Snapshot snapshot = new Snapshot() {
+            @Override
+            public String cold() throws Exception {
+                // A new store, so that no object is remembered from the previous snapshot
+                ObjectStore.close(repo.toString());
+                HotPaths.deleteRecursively(repo.resolve("git"));
+                new Git().initRepo(repo.toString());
+                return new Blob().createRootTree(dir.toString(), repo.toString());
+            }
+
+            @Override
+            public String unchanged() throws Exception {
+                return new Blob().createRootTree(dir.toString(), repo.toString());
+            }
+
+            @Override
+            public void close() {
+                Blob.SNAPSHOT_PARALLELISM = previous;
+                ObjectStore.close(repo.toString());
+            }
+        };
+        // A cold snapshot that didn't store its tree would make the timings meaningless
+        String tree = snapshot.cold();
+        if (ObjectStore.open(repo.toString()).locate(tree) == null) {
+            snapshot.close();
+            throw new IllegalStateException("Cold snapshot did not write its objects");
+        }
+        return snapshot;
+    }
+
+    private static void generateTree(Path dir, int levels, int fanout, int filesPerDir, int fileSize) throws IOException {
+        Files.createDirectories(dir);
+        for (int i = 0; i < filesPerDir; i++) {
+            Files.write(dir.resolve("file" + i + ".txt"), HotPaths.randomText(fileSize));
+        }
+        if (levels > 0) {
+            for (int i = 0; i < fanout; i++) {
+                generateTree(dir.resolve("dir" + i), levels - 1, fanout, filesPerDir, fileSize);
+            }
+        }
+    }
+
+    private static String indexPath(int i) {
+        return String.format("repo/dir%03d/sub%03d/file%07d.txt", i % 997, i % 101, i);
+    }
+
+    private static ObjectId syntheticHash(int seed) {
+        return ObjectId.fromHex(String.format("%08x%032x", seed, (long) seed * 0x9E3779B97F4A7C15L));
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
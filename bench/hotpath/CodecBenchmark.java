@@ -0,0 +1,47 @@
+package hotpath;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Encoding 1M of text and of random bytes with each codec, and picking a codec by sampling. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"none", "deflate-1", "deflate-6", "deflate-9"})
+    String codec;
+
+    @Param({"text", "random"})
+    String content;
+
+    private HotPaths hotPaths;
+    private HotPaths.Codec encoder;
+    private byte[] data;
+
+    @Setup
+    public void setUp() {
+        hotPaths = HotPaths.load();
+        encoder = hotPaths.codec(codec);
+        if (content.equals("text")) {
+            data = HotPaths.randomText(1024 * 1024);
+        } else {
+            data = new byte[1024 * 1024];
+            new Random(42).nextBytes(data);
+        }
+    }
+
+    @Benchmark
+    public long encode() throws Exception {
+        return encoder.encode(data);
+    }
+
+    /** Doesn't depend on the codec parameter, so only one codec's figures are worth reading. */
+    @Benchmark
+    public Object chooseCodec() {
+        return hotPaths.chooseCodec(data);
+    }
+}
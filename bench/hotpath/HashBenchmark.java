@@ -0,0 +1,40 @@
+package hotpath;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Hashing a file the way staging does, at 1K, 1M and 64M. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+    @Param({"1024", "1048576", "67108864"})
+    int size;
+
+    private HotPaths hotPaths;
+    private Path scratch;
+    private Path file;
+
+    @Setup
+    public void setUp() throws Exception {
+        hotPaths = HotPaths.load();
+        scratch = Files.createTempDirectory("git-bench");
+        file = scratch.resolve("hash-" + size);
+        Files.write(file, HotPaths.randomText(size));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        HotPaths.deleteRecursively(scratch);
+    }
+
+    @Benchmark
+    public Object generateUniqueFileName() throws Exception {
+        return hotPaths.hashFile(file);
+    }
+}
@@ -0,0 +1,99 @@
+package hotpath;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * The project operations the benchmarks in this package measure.
+ *
+ * JMH needs benchmark classes to be in a package, and a class in a package can't refer to
+ * the project's classes in the default package. The implementation, bench/HotPathFixture,
+ * is in the default package and is loaded by name once per trial, so the measured calls
+ * are plain interface calls.
+ *
+ * Build and run from the project directory:
+ * <pre>
+ *   mvn -B -P jmh package
+ *   java -jar target/benchmarks.jar -prof gc
+ *   java -jar target/benchmarks.jar -prof gc -f 1 -wi 1 -i 3 -p entries=1000 IndexBenchmark
+ * </pre>
+ *
+ * The gc profiler reports allocation per operation (gc.alloc.rate.norm) and the collection
+ * count alongside the throughput, including allocation on the parallel snapshot's workers.
+ */
+public interface HotPaths {
+    static HotPaths load() {
+        try {
+            return (HotPaths) Class.forName("HotPathFixture").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("HotPathFixture is not on the classpath", e);
+        }
+    }
+
+    /** Hashes a file the way staging does, returning its object id. */
+    Object hashFile(Path file) throws Exception;
+
+    Codec codec(String name);
+
+    /** Picks a codec for the content by sampling it, returning the codec it picked. */
+    Object chooseCodec(byte[] content);
+
+    /** An index in a new repository under dir with the given number of entries. */
+    Index index(Path dir, int entries) throws IOException;
+
+    /**
+     * A generated tree under dir, depth levels deep, with fanout subdirectories and
+     * filesPerDir files of fileSize bytes in every directory.
+     */
+    Snapshot snapshot(Path dir, int depth, int fanout, int filesPerDir, int fileSize, int parallelism) throws Exception;
+
+    interface Codec {
+        /** Encodes the content and returns the encoded size. */
+        long encode(byte[] content) throws IOException;
+    }
+
+    interface Index {
+        void flush() throws IOException;
+
+        Object load() throws IOException;
+
+        /** Looks up one path from the middle of the index without loading all of it. */
+        Object lookup() throws IOException;
+
+        /** Loads the index, stages one entry and flushes it. */
+        void stageOne() throws IOException;
+    }
+
+    interface Snapshot extends AutoCloseable {
+        /** Snapshots into a new repository, so every object is written. */
+        String cold() throws Exception;
+
+        /** Snapshots again when nothing has changed since the last snapshot. */
+        String unchanged() throws Exception;
+
+        @Override
+        void close();
+    }
+
+    /** Compressible content: random lowercase words, roughly like source or log text. */
+    static byte[] randomText(int size) {
+        Random random = new Random(size);
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = random.nextInt(8) == 0 ? (byte) ' ' : (byte) ('a' + random.nextInt(26));
+        }
+        return content;
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (var paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
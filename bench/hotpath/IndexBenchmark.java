@@ -0,0 +1,52 @@
+package hotpath;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Flushing, loading, looking up in and staging into an index of 1k, 100k and 1M entries. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int entries;
+
+    private Path scratch;
+    private HotPaths.Index index;
+
+    @Setup
+    public void setUp() throws Exception {
+        scratch = Files.createTempDirectory("git-bench");
+        index = HotPaths.load().index(scratch, entries);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        HotPaths.deleteRecursively(scratch);
+    }
+
+    @Benchmark
+    public void flush() throws Exception {
+        index.flush();
+    }
+
+    @Benchmark
+    public Object load() throws Exception {
+        return index.load();
+    }
+
+    @Benchmark
+    public Object lookupOnePath() throws Exception {
+        return index.lookup();
+    }
+
+    @Benchmark
+    public void stageOneEntry() throws Exception {
+        index.stageOne();
+    }
+}
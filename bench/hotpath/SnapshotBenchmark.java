@@ -0,0 +1,59 @@
+package hotpath;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * createRootTree on a generated tree, into a new repository (cold) and again with nothing
+ * changed. A parallelism of 0 uses one thread per processor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+    @Param("3")
+    int depth;
+
+    @Param("4")
+    int fanout;
+
+    @Param("20")
+    int files;
+
+    @Param("4096")
+    int fileSize;
+
+    @Param({"1", "0"})
+    int parallelism;
+
+    private Path scratch;
+    private HotPaths.Snapshot snapshot;
+
+    @Setup
+    public void setUp() throws Exception {
+        scratch = Files.createTempDirectory("git-bench");
+        int threads = parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism;
+        snapshot = HotPaths.load().snapshot(scratch, depth, fanout, files, fileSize, threads);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        snapshot.close();
+        HotPaths.deleteRecursively(scratch);
+    }
+
+    @Benchmark
+    public String cold() throws Exception {
+        return snapshot.cold();
+    }
+
+    @Benchmark
+    public String unchanged() throws Exception {
+        return snapshot.unchanged();
+    }
+}